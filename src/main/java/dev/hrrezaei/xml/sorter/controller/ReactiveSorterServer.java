@@ -0,0 +1,67 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+/**
+ * Runs the {@link ReactiveXmlSorterRouter reactive sorter API} on a Reactor Netty server of its own, next to the
+ * servlet container serving the rest of the application.
+ * <p>
+ * The server is only started when {@code sorter.reactive.enabled} is {@code true}, and listens on
+ * {@code sorter.reactive.port}.
+ * </p>
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(prefix = "sorter.reactive", name = "enabled", havingValue = "true")
+public class ReactiveSorterServer implements SmartLifecycle {
+
+    private final ReactiveXmlSorterRouter router;
+    private final int port;
+    private DisposableServer server;
+
+    @Autowired
+    public ReactiveSorterServer(ReactiveXmlSorterRouter router, @Value("${sorter.reactive.port:8081}") int port) {
+        this.router = router;
+        this.port = port;
+    }
+
+    @Override
+    public void start() {
+        HttpHandler httpHandler = RouterFunctions.toHttpHandler(router.routes());
+        server = HttpServer.create()
+                .port(port)
+                .handle(new ReactorHttpHandlerAdapter(httpHandler))
+                .bindNow();
+        log.info("Reactive sorter API started on port {}", server.port());
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.disposeNow();
+            server = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    /**
+     * @return the port the server listens on, which is only known once started if configured as {@code 0}
+     */
+    public int getPort() {
+        return server == null ? port : server.port();
+    }
+}
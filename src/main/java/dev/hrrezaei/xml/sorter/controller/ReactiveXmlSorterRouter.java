@@ -0,0 +1,105 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import dev.hrrezaei.xml.sorter.service.ReactiveXmlSorter;
+import dev.hrrezaei.xml.sorter.service.SortOptions;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+import static org.springframework.web.reactive.function.server.RequestPredicates.contentType;
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * The reactive variant of the sorter API, served by the {@link ReactiveSorterServer}.
+ * <p>
+ * The request body is consumed as a stream of buffers and parsed without blocking while it arrives, and the sorted
+ * XML is written back as a stream of buffers as fast as the client reads it. This allows a few event-loop threads to
+ * serve many concurrent slow clients.
+ * </p>
+ */
+@Log4j2
+@Component
+public class ReactiveXmlSorterRouter {
+
+    private static final int RESPONSE_BUFFER_SIZE = 8192;
+
+    private final ReactiveXmlSorter reactiveXmlSorter;
+    private final SortDeadlinePolicy sortDeadlinePolicy;
+
+    @Autowired
+    public ReactiveXmlSorterRouter(ReactiveXmlSorter reactiveXmlSorter, SortDeadlinePolicy sortDeadlinePolicy) {
+        this.reactiveXmlSorter = reactiveXmlSorter;
+        this.sortDeadlinePolicy = sortDeadlinePolicy;
+    }
+
+    /**
+     * @return the routes of the reactive sorter API
+     */
+    public RouterFunction<ServerResponse> routes() {
+        return route(POST("/api/v1/sorter/xml").and(contentType(MediaType.APPLICATION_XML, MediaType.TEXT_XML)), this::sortXml);
+    }
+
+    /**
+     * Sorts the XML content streamed in the request body and streams the sorted XML back.
+     * <p>
+     * The same query parameters as the servlet endpoint are supported, see {@link SortRequestParameters}, as well as
+     * the {@value SortDeadlinePolicy#TIMEOUT_HEADER} header. A request that goes over its deadline is answered with
+     * {@code 503 Service Unavailable}, and one whose client goes away stops being sorted.
+     * </p>
+     *
+     * @param request the request holding the XML content to sort
+     * @return the response streaming the sorted XML
+     */
+    public Mono<ServerResponse> sortXml(ServerRequest request) {
+        SortOptions options;
+        try {
+            options = SortRequestParameters.toSortOptions(request.queryParams()).toBuilder()
+                    .deadline(sortDeadlinePolicy.start(request.headers().firstHeader(SortDeadlinePolicy.TIMEOUT_HEADER)))
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return badRequest(e);
+        }
+
+        return reactiveXmlSorter.sort(request.body(BodyExtractors.toDataBuffers()), options)
+                .flatMap(sortedXml -> ServerResponse.ok()
+                        .contentType(new MediaType(MediaType.APPLICATION_XML, sortedXml.charset()))
+                        .body(sortedXml.toDataBuffers(request.exchange().getResponse().bufferFactory(), RESPONSE_BUFFER_SIZE),
+                                DataBuffer.class))
+                .doFinally(signal -> {
+                    if (signal == SignalType.CANCEL) {
+                        sortDeadlinePolicy.recordAbandoned("reactive");
+                    }
+                })
+                .onErrorResume(SortCancelledException.class, e -> {
+                    sortDeadlinePolicy.recordCancelled(e, "reactive");
+                    return ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .contentType(MediaType.TEXT_PLAIN)
+                            .bodyValue("Error sorting XML content: " + e.getMessage());
+                })
+                .onErrorResume(DataBufferLimitException.class, e -> ServerResponse.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .bodyValue("Error sorting XML content: " + e.getMessage()))
+                .onErrorResume(e -> e instanceof XmlSortingException || e instanceof DecodingException, this::badRequest);
+    }
+
+    private Mono<ServerResponse> badRequest(Throwable e) {
+        log.debug("Rejecting reactive sort request", e);
+        return ServerResponse.badRequest()
+                .contentType(MediaType.TEXT_PLAIN)
+                .bodyValue("Error sorting XML content: " + e.getMessage());
+    }
+}
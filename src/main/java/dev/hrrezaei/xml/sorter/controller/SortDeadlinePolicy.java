@@ -0,0 +1,92 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
+import dev.hrrezaei.xml.sorter.service.SortDeadline;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Sets the deadlines of the sort requests, and counts the requests that did not make it.
+ * <p>
+ * Every request gets {@code sorter.deadline.timeout} to be sorted, unless it asks for another time budget with the
+ * {@value #TIMEOUT_HEADER} header, like {@code 500ms}, {@code 2s} or {@code PT1M}, which may not exceed
+ * {@code sorter.deadline.max-timeout}. Requests stopped by their deadline, or cancelled because their client went
+ * away, are counted by the {@value #CANCELLED_METRIC} metric, tagged by {@code reason} ({@code deadline} or
+ * {@code cancelled}) and by {@code api} ({@code servlet} or {@code reactive}).
+ * </p>
+ */
+@Log4j2
+@Component
+public class SortDeadlinePolicy {
+
+    public static final String TIMEOUT_HEADER = "X-Sort-Timeout";
+    public static final String CANCELLED_METRIC = "sorter.requests.cancelled";
+
+    private final Duration timeout;
+    private final Duration maxTimeout;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public SortDeadlinePolicy(@Value("${sorter.deadline.timeout:PT1M}") Duration timeout,
+                              @Value("${sorter.deadline.max-timeout:PT10M}") Duration maxTimeout,
+                              MeterRegistry meterRegistry) {
+        this.timeout = timeout;
+        this.maxTimeout = maxTimeout;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Starts the deadline of a request.
+     *
+     * @param timeoutHeader the value of the {@value #TIMEOUT_HEADER} header, or {@code null} for the default timeout
+     * @return the deadline of the request
+     * @throws IllegalArgumentException if the header is not a positive duration
+     */
+    public SortDeadline start(String timeoutHeader) {
+        Duration requestTimeout = timeout;
+        if (timeoutHeader != null) {
+            requestTimeout = DurationStyle.detectAndParse(timeoutHeader.trim());
+            if (requestTimeout.isNegative() || requestTimeout.isZero()) {
+                throw new IllegalArgumentException("The " + TIMEOUT_HEADER + " header must be a positive duration");
+            }
+        }
+        return SortDeadline.after(requestTimeout.compareTo(maxTimeout) > 0 ? maxTimeout : requestTimeout);
+    }
+
+    /**
+     * Counts a request that did not complete in time or was cancelled.
+     *
+     * @param e   the reason the request stopped
+     * @param api the API that served the request, {@code servlet} or {@code reactive}
+     */
+    public void recordCancelled(SortCancelledException e, String api) {
+        log.info("Stopped a {} sort request: {}", api, e.getMessage());
+        increment(e.isDeadlineExceeded() ? "deadline" : "cancelled", api);
+    }
+
+    /**
+     * Counts a request whose client went away before it was answered.
+     *
+     * @param api the API that served the request, {@code servlet} or {@code reactive}
+     */
+    public void recordAbandoned(String api) {
+        log.info("Stopped a {} sort request: the client went away", api);
+        increment("cancelled", api);
+    }
+
+    private void increment(String reason, String api) {
+        Counter.builder(CANCELLED_METRIC)
+                .description("Sort requests stopped by their deadline or cancelled")
+                .tag("reason", reason)
+                .tag("api", api)
+                .register(meterRegistry)
+                .increment();
+    }
+}
@@ -0,0 +1,59 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import dev.hrrezaei.xml.sorter.service.OutputFormat;
+import dev.hrrezaei.xml.sorter.service.SortOptions;
+import dev.hrrezaei.xml.sorter.service.ValueType;
+import org.springframework.util.MultiValueMap;
+
+import java.util.List;
+
+/**
+ * The request parameters shared by the sorter endpoints to tune how the XML content is sorted.
+ */
+public class SortRequestParameters {
+
+    public static final String COLLAPSE_DUPLICATES = "collapseDuplicates";
+    public static final String INCLUDE_PATH = "includePath";
+    public static final String EXCLUDE_PATH = "excludePath";
+    public static final String OUTPUT_FORMAT = "outputFormat";
+    public static final String FRAMING = "framing";
+    public static final String VALUE_TYPE = "valueType";
+
+    /**
+     * Builds the {@code SortOptions} from the values of the request parameters.
+     *
+     * @param collapseDuplicates whether identical sibling elements should be collapsed into one
+     * @param includePaths       the paths of the only subtrees to sort, or {@code null} to sort all of them
+     * @param excludePaths       the paths of the subtrees to leave unsorted, or {@code null} if none
+     * @param outputFormat       the layout of the sorted content
+     * @param valueTypes         the types of the values to compare by their typed value, or {@code null} if none
+     * @return the options to sort the content with
+     */
+    public static SortOptions toSortOptions(boolean collapseDuplicates, List<String> includePaths, List<String> excludePaths,
+                                            OutputFormat outputFormat, List<ValueType> valueTypes) {
+        return SortOptions.builder()
+                .collapseDuplicates(collapseDuplicates)
+                .includePaths(includePaths == null ? List.of() : includePaths)
+                .excludePaths(excludePaths == null ? List.of() : excludePaths)
+                .outputFormat(outputFormat)
+                .valueTypes(valueTypes == null ? List.of() : valueTypes)
+                .build();
+    }
+
+    /**
+     * Builds the {@code SortOptions} from the query parameters of a request.
+     *
+     * @param queryParams the query parameters of the request
+     * @return the options to sort the content with
+     * @throws IllegalArgumentException if the output format or a value type is unknown
+     */
+    public static SortOptions toSortOptions(MultiValueMap<String, String> queryParams) {
+        String outputFormat = queryParams.getFirst(OUTPUT_FORMAT);
+        List<String> valueTypes = queryParams.getOrDefault(VALUE_TYPE, List.of());
+        return toSortOptions(Boolean.parseBoolean(queryParams.getFirst(COLLAPSE_DUPLICATES)),
+                queryParams.get(INCLUDE_PATH),
+                queryParams.get(EXCLUDE_PATH),
+                outputFormat == null ? OutputFormat.INDENTED : OutputFormat.valueOf(outputFormat.trim()),
+                valueTypes.stream().map(valueType -> ValueType.valueOf(valueType.trim())).toList());
+    }
+}
@@ -1,45 +1,119 @@
 package dev.hrrezaei.xml.sorter.controller;
 
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
 import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import dev.hrrezaei.xml.sorter.service.OutputFormat;
+import dev.hrrezaei.xml.sorter.service.PathSelector;
+import dev.hrrezaei.xml.sorter.service.SortOptions;
+import dev.hrrezaei.xml.sorter.service.SortedResultCache;
+import dev.hrrezaei.xml.sorter.service.ValueType;
 import dev.hrrezaei.xml.sorter.service.XmlSorter;
+import dev.hrrezaei.xml.sorter.service.XmlStreamSorter;
+import dev.hrrezaei.xml.sorter.service.XmlStreamSorter.Framing;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
 
+import static dev.hrrezaei.xml.sorter.controller.SortDeadlinePolicy.TIMEOUT_HEADER;
+import static dev.hrrezaei.xml.sorter.controller.SortRequestParameters.*;
 
+
+@Log4j2
 @RestController
 @RequestMapping("/api/v1/sorter")
 public class XmlSorterController {
 
+    // Request attributes of Tomcat for sending a file straight from the disk to the socket
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final XmlSorter xmlSorter;
+    private final XmlStreamSorter xmlStreamSorter;
+    private final SortedResultCache sortedResultCache;
+    private final SortDeadlinePolicy sortDeadlinePolicy;
 
     @Autowired
-    public XmlSorterController(XmlSorter xmlSorter) {
+    public XmlSorterController(XmlSorter xmlSorter, XmlStreamSorter xmlStreamSorter,
+                               Optional<SortedResultCache> sortedResultCache, SortDeadlinePolicy sortDeadlinePolicy) {
         this.xmlSorter = xmlSorter;
+        this.xmlStreamSorter = xmlStreamSorter;
+        this.sortedResultCache = sortedResultCache.orElse(null);
+        this.sortDeadlinePolicy = sortDeadlinePolicy;
     }
 
     /**
      * Sorts the given XML content provided in the request body and returns the sorted XML.
      *
-     * @param xmlContent the XML content to sort
-     * @return a ResponseEntity containing the sorted XML string
+     * @param xmlContent         the XML content to sort
+     * @param collapseDuplicates whether identical sibling elements should be collapsed into one
+     * @param includePaths       the paths of the only subtrees to sort, if any
+     * @param excludePaths       the paths of the subtrees to leave unsorted, if any
+     * @param outputFormat       the layout of the sorted XML
+     * @param valueTypes         the types of the values to compare by their typed value, if any
+     * @param timeout            the time budget of the request, if not the default one
+     * @param request            the request, used to send cached results straight from the disk
+     * @return a ResponseEntity containing the sorted XML string, or {@code 503 Service Unavailable} if the sort did
+     * not complete within its time budget
      */
     @PostMapping(value = "/xml",
             consumes = {MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE},
             produces = {MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE})
-    public ResponseEntity<String> sortXmlString(@RequestBody String xmlContent) {
+    public ResponseEntity<?> sortXmlString(@RequestBody String xmlContent,
+                                           @RequestParam(name = COLLAPSE_DUPLICATES, defaultValue = "false") boolean collapseDuplicates,
+                                           @RequestParam(name = INCLUDE_PATH, required = false) List<String> includePaths,
+                                           @RequestParam(name = EXCLUDE_PATH, required = false) List<String> excludePaths,
+                                           @RequestParam(name = OUTPUT_FORMAT, defaultValue = "INDENTED") OutputFormat outputFormat,
+                                           @RequestParam(name = VALUE_TYPE, required = false) List<ValueType> valueTypes,
+                                           @RequestHeader(name = TIMEOUT_HEADER, required = false) String timeout,
+                                           HttpServletRequest request) {
+        SortOptions options = toSortOptions(collapseDuplicates, includePaths, excludePaths, outputFormat, valueTypes);
+        try {
+            options = options.toBuilder().deadline(sortDeadlinePolicy.start(timeout)).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Error sorting XML content: " + e.getMessage());
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_XML);
+        String cacheKey = null;
+        if (sortedResultCache != null) {
+            cacheKey = SortedResultCache.key(xmlContent.getBytes(StandardCharsets.UTF_8), options);
+            ResponseEntity<?> cachedResponse = cachedResponse(cacheKey, headers, request);
+            if (cachedResponse != null) {
+                return cachedResponse;
+            }
+        }
+
         try {
-            String sortedXml = xmlSorter.sort(xmlContent);
+            String sortedXml = xmlSorter.sort(xmlContent, options);
+            if (cacheKey != null) {
+                sortedResultCache.put(cacheKey, sortedXml);
+            }
             return ResponseEntity.ok()
                     .contentType(MediaType.APPLICATION_XML)
                     .body(sortedXml);
+        } catch (SortCancelledException e) {
+            return cancelledResponse("Error sorting XML content: ", e);
         } catch (XmlSortingException e) {
             return ResponseEntity.badRequest().body("Error sorting XML content: " + e.getMessage());
         }
@@ -48,20 +122,35 @@ public class XmlSorterController {
     /**
      * Sorts the XML content from the uploaded file and returns the sorted XML as a downloadable file.
      *
-     * @param file the XML file to sort
-     * @return a ResponseEntity containing the sorted XML file
+     * @param file               the XML file to sort
+     * @param collapseDuplicates whether identical sibling elements should be collapsed into one
+     * @param includePaths       the paths of the only subtrees to sort, if any
+     * @param excludePaths       the paths of the subtrees to leave unsorted, if any
+     * @param outputFormat       the layout of the sorted XML
+     * @param valueTypes         the types of the values to compare by their typed value, if any
+     * @param timeout            the time budget of the request, if not the default one
+     * @param request            the request, used to send cached results straight from the disk
+     * @return a ResponseEntity containing the sorted XML file, or {@code 503 Service Unavailable} if the sort did not
+     * complete within its time budget
      */
     @PostMapping(value = "/xml", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<?> sortXmlFile(@RequestParam("file") MultipartFile file) {
+    public ResponseEntity<?> sortXmlFile(@RequestParam("file") MultipartFile file,
+                                         @RequestParam(name = COLLAPSE_DUPLICATES, defaultValue = "false") boolean collapseDuplicates,
+                                         @RequestParam(name = INCLUDE_PATH, required = false) List<String> includePaths,
+                                         @RequestParam(name = EXCLUDE_PATH, required = false) List<String> excludePaths,
+                                         @RequestParam(name = OUTPUT_FORMAT, defaultValue = "INDENTED") OutputFormat outputFormat,
+                                         @RequestParam(name = VALUE_TYPE, required = false) List<ValueType> valueTypes,
+                                         @RequestHeader(name = TIMEOUT_HEADER, required = false) String timeout,
+                                         HttpServletRequest request) {
         if (file.isEmpty()) {
             return ResponseEntity.badRequest().body("No file uploaded");
         }
 
         try {
-            String sortedXml = xmlSorter.sort(file.getInputStream());
-
-            // Create a resource from the sorted XML
-            ByteArrayResource resource = new ByteArrayResource(sortedXml.getBytes());
+            SortOptions options = toSortOptions(collapseDuplicates, includePaths, excludePaths, outputFormat, valueTypes)
+                    .toBuilder()
+                    .deadline(sortDeadlinePolicy.start(timeout))
+                    .build();
 
             // Prepare the response headers
             HttpHeaders headers = new HttpHeaders();
@@ -70,12 +159,132 @@ public class XmlSorterController {
                     .filename(inputFileName + "-sorted.xml").build());
             headers.setContentType(MediaType.APPLICATION_XML);
 
+            String sortedXml;
+            if (sortedResultCache != null) {
+                byte[] content = file.getBytes();
+                String cacheKey = SortedResultCache.key(content, options);
+                ResponseEntity<?> cachedResponse = cachedResponse(cacheKey, headers, request);
+                if (cachedResponse != null) {
+                    return cachedResponse;
+                }
+                sortedXml = xmlSorter.sort(new ByteArrayInputStream(content), options);
+                sortedResultCache.put(cacheKey, sortedXml);
+            } else {
+                sortedXml = xmlSorter.sort(file.getInputStream(), options);
+            }
+
+            // Create a resource from the sorted XML
+            ByteArrayResource resource = new ByteArrayResource(sortedXml.getBytes());
+
             return ResponseEntity.ok()
                     .headers(headers)
                     .contentLength(resource.contentLength())
                     .body(resource);
-        } catch (XmlSortingException | IOException e) {
+        } catch (SortCancelledException e) {
+            return cancelledResponse("Error sorting XML file: ", e);
+        } catch (XmlSortingException | IOException | IllegalArgumentException e) {
             return ResponseEntity.badRequest().body("Error sorting XML file: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Sorts a stream of XML documents provided in the request body and streams the sorted documents back, framed the
+     * same way and in the same order. A document that cannot be sorted is returned as an empty document.
+     *
+     * @param inputStream        the framed XML documents to sort
+     * @param framing            how the documents are delimited: one per line, or each preceded by its length
+     * @param collapseDuplicates whether identical sibling elements should be collapsed into one
+     * @param includePaths       the paths of the only subtrees to sort, if any
+     * @param excludePaths       the paths of the subtrees to leave unsorted, if any
+     * @param outputFormat       the layout of the sorted XML
+     * @param valueTypes         the types of the values to compare by their typed value, if any
+     * @return a ResponseEntity streaming the sorted XML documents
+     */
+    @PostMapping(value = "/xml/stream")
+    public ResponseEntity<StreamingResponseBody> sortXmlStream(InputStream inputStream,
+                                                               @RequestParam(name = FRAMING, defaultValue = "NEWLINE") Framing framing,
+                                                               @RequestParam(name = COLLAPSE_DUPLICATES, defaultValue = "false") boolean collapseDuplicates,
+                                                               @RequestParam(name = INCLUDE_PATH, required = false) List<String> includePaths,
+                                                               @RequestParam(name = EXCLUDE_PATH, required = false) List<String> excludePaths,
+                                                               @RequestParam(name = OUTPUT_FORMAT, defaultValue = "INDENTED") OutputFormat outputFormat,
+                                                               @RequestParam(name = VALUE_TYPE, required = false) List<ValueType> valueTypes) {
+        SortOptions options = toSortOptions(collapseDuplicates, includePaths, excludePaths, outputFormat, valueTypes);
+        try {
+            // Reject invalid paths upfront, rather than failing every document of the stream
+            new PathSelector(options);
+        } catch (IllegalArgumentException e) {
+            byte[] message = ("Error sorting XML stream: " + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+            return ResponseEntity.badRequest()
+                    .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8))
+                    .body(outputStream -> outputStream.write(message));
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try {
+                xmlStreamSorter.sort(inputStream, outputStream, framing, options);
+            } catch (XmlSortingException e) {
+                log.warn("Aborting the XML stream: {}", e.getMessage());
+                throw new IOException("Error sorting XML stream: " + e.getMessage(), e);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(framing == Framing.NEWLINE
+                        ? new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8)
+                        : MediaType.APPLICATION_OCTET_STREAM)
+                .body(body);
+    }
+
+    /**
+     * Builds the response of a request stopped by its deadline, distinct from the responses of invalid requests so
+     * that clients can tell that retrying with a larger time budget may succeed.
+     */
+    private ResponseEntity<?> cancelledResponse(String message, SortCancelledException e) {
+        sortDeadlinePolicy.recordCancelled(e, "servlet");
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(message + e.getMessage());
+    }
+
+    /**
+     * Builds the response of a cached sorted result, if any. When the servlet container supports it, the file is sent
+     * with zero-copy {@code sendfile}, straight from the disk to the socket, and otherwise it is streamed as is.
+     * <p>
+     * The file is opened right away when streamed, and the cache keeps the files of evicted entries for a while, so
+     * that the file is still there when the response is sent, even if its entry is evicted in the meantime.
+     * </p>
+     *
+     * @return the response of the cached sorted result, or {@code null} if there is none
+     */
+    private ResponseEntity<?> cachedResponse(String cacheKey, HttpHeaders headers, HttpServletRequest request) {
+        Optional<Path> cachedFile = sortedResultCache.get(cacheKey);
+        if (cachedFile.isEmpty()) {
+            return null;
+        }
+        long length;
+        try {
+            length = Files.size(cachedFile.get());
+        } catch (IOException e) {
+            log.debug("Error reading the cached sorted XML {}", cacheKey, e);
+            return null;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            request.setAttribute(SENDFILE_FILENAME, cachedFile.get().toString());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, length);
+            log.debug("Sending the cached sorted XML {} with sendfile", cacheKey);
+            return ResponseEntity.ok().headers(headers).contentLength(length).build();
+        }
+        InputStream inputStream;
+        try {
+            inputStream = Files.newInputStream(cachedFile.get());
+        } catch (IOException e) {
+            log.debug("Error opening the cached sorted XML {}", cacheKey, e);
+            return null;
+        }
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentLength(length)
+                .body(new InputStreamResource(inputStream));
+    }
+}
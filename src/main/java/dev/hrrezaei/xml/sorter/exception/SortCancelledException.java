@@ -0,0 +1,21 @@
+package dev.hrrezaei.xml.sorter.exception;
+
+/**
+ * Thrown when a sort operation stops before completion, because its deadline has passed or it has been cancelled.
+ */
+public class SortCancelledException extends XmlSortingException {
+
+    private final boolean deadlineExceeded;
+
+    public SortCancelledException(String message, boolean deadlineExceeded, Throwable cause) {
+        super(message, cause);
+        this.deadlineExceeded = deadlineExceeded;
+    }
+
+    /**
+     * @return {@code true} if the sort operation ran out of time, {@code false} if it has been cancelled
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+}
@@ -0,0 +1,199 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.w3c.dom.Document;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routes every sort operation to the sorting engine best suited to the shape of its document, as gathered by a quick
+ * {@link DocumentShape#scan(String) scan} of the content before parsing it.
+ * <p>
+ * The engines are consulted in order, and the first one suited to the document sorts it:
+ * </p>
+ * <ol>
+ *     <li>the {@link SortEngine} beans, in their order;</li>
+ *     <li>{@value #SHARDED}, sorting in parallel the documents with a list of sibling elements long enough to be
+ *     sharded, see {@link SortOptions#getMinShardSize()}, when {@code sorter.adaptive.parallelism} allows more than one
+ *     shard. It defaults to {@code sorter.parallelism}, so that the sharded engine is only used when record sharding
+ *     is enabled, and takes precedence over it when set;</li>
+ *     <li>{@value #POOLED}, sorting the documents smaller than {@code sorter.adaptive.small-document-size} with a
+ *     {@link PooledXmlSorter};</li>
+ *     <li>{@value #DOM}, the {@link XmlSorterImpl}, sorting every other document, like deep and narrow ones.</li>
+ * </ol>
+ * <p>
+ * Sort operations selecting subtrees by {@link SortOptions#getIncludePaths() include paths} are streamed by the
+ * {@link XmlSorterImpl} without being scanned, as {@value #STREAMING}, and {@code Document} objects are sorted by
+ * the {@value #DOM} engine. Options setting their own {@link SortOptions#getParallelism() parallelism} are never
+ * routed to the {@value #SHARDED} engine.
+ * </p>
+ * <p>
+ * The time taken by every engine is recorded by the {@value #ENGINE_METRIC} timer, and the size of the documents it
+ * sorts by the {@value #INPUT_SIZE_METRIC} distribution summary, both tagged by {@code engine}, so that the thresholds
+ * can be tuned from the actual traffic.
+ * </p>
+ * <p>
+ * Only enabled when {@code sorter.adaptive.enabled} is {@code true}, in which case it is the primary {@link XmlSorter}.
+ * </p>
+ */
+@Log4j2
+@Primary
+@Service
+@ConditionalOnProperty(prefix = "sorter.adaptive", name = "enabled", havingValue = "true")
+public class AdaptiveXmlSorter implements XmlSorter {
+
+    public static final String ENGINE_METRIC = "sorter.engine.sorts";
+    public static final String INPUT_SIZE_METRIC = "sorter.engine.input.size";
+
+    public static final String STREAMING = "streaming";
+    public static final String SHARDED = "sharded";
+    public static final String POOLED = "pooled";
+    public static final String DOM = "dom";
+
+    private final XmlSorterImpl xmlSorter;
+    private final List<SortEngine> engines;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public AdaptiveXmlSorter(XmlSorterImpl xmlSorter,
+                             ObjectProvider<SortEngine> customEngines,
+                             @Value("${sorter.adaptive.small-document-size:64KB}") DataSize smallDocumentSize,
+                             @Value("${sorter.adaptive.parallelism:${sorter.parallelism:1}}") int parallelism,
+                             MeterRegistry meterRegistry) {
+        this(xmlSorter, customEngines.orderedStream().toList(), smallDocumentSize, parallelism, meterRegistry);
+    }
+
+    /**
+     * Creates a sorter routing the sort operations to the given engines first, and then to the built-in ones.
+     *
+     * @param xmlSorter         the sorter of the {@value #DOM} and {@value #STREAMING} engines
+     * @param customEngines     the engines to consult first, in order
+     * @param smallDocumentSize the size under which documents are sorted by the {@value #POOLED} engine
+     * @param parallelism       the maximum number of shards sorted in parallel by the {@value #SHARDED} engine,
+     *                          {@code 0} for one per available processor
+     * @param meterRegistry     the registry of the metrics of the engines
+     */
+    public AdaptiveXmlSorter(XmlSorterImpl xmlSorter, List<SortEngine> customEngines, DataSize smallDocumentSize,
+                             int parallelism, MeterRegistry meterRegistry) {
+        this.xmlSorter = xmlSorter;
+        this.meterRegistry = meterRegistry;
+
+        List<SortEngine> engines = new ArrayList<>(customEngines);
+        int shards = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        if (shards > 1) {
+            engines.add(SortEngine.of(SHARDED, new XmlSorterImpl(shards), (shape, options) ->
+                    options.getParallelism() == 0 && shape.getMaxFanOut() >= 2L * options.getMinShardSize()));
+        }
+        long smallSize = smallDocumentSize.toBytes();
+        engines.add(SortEngine.of(POOLED, new PooledXmlSorter(), (shape, options) -> shape.getSize() < smallSize));
+        engines.add(SortEngine.of(DOM, xmlSorter, (shape, options) -> true));
+        this.engines = Collections.unmodifiableList(engines);
+        log.info("Routing the sort operations to the engines {}", this.engines);
+    }
+
+    /**
+     * @return the engines, in the order they are consulted
+     */
+    public List<SortEngine> getEngines() {
+        return engines;
+    }
+
+    /**
+     * Selects the engine sorting a document of the given shape with the given options.
+     *
+     * @param shape   the shape of the document
+     * @param options the options the document is sorted with
+     * @return the first engine suited to the document
+     */
+    public SortEngine select(DocumentShape shape, SortOptions options) {
+        for (SortEngine engine : engines) {
+            if (engine.suits(shape, options)) {
+                return engine;
+            }
+        }
+        // The DOM engine suits every document
+        throw new IllegalStateException("No engine suits the document");
+    }
+
+    @Override
+    public String sort(String xmlContent, SortOptions options) throws XmlSortingException {
+        if (XmlSorterImpl.isStreamingPathSelection(options)) {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            try {
+                return xmlSorter.sort(xmlContent, options);
+            } finally {
+                sample.stop(timer(STREAMING));
+            }
+        }
+
+        DocumentShape shape = DocumentShape.scan(xmlContent);
+        SortEngine engine = select(shape, options);
+        log.debug("Sorting a document of {} with the {} engine", shape, engine.getName());
+        inputSize(engine.getName()).record(shape.getSize());
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return engine.getSorter().sort(xmlContent, options);
+        } finally {
+            sample.stop(timer(engine.getName()));
+        }
+    }
+
+    /**
+     * Sorts the XML content read from the given {@code InputStream}, which is streamed without being read into memory
+     * first when {@link SortOptions#getIncludePaths() include paths} are given.
+     */
+    @Override
+    public String sort(InputStream inputStream, SortOptions options) throws XmlSortingException {
+        if (!XmlSorterImpl.isStreamingPathSelection(options)) {
+            return XmlSorter.super.sort(inputStream, options);
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return xmlSorter.sort(inputStream, options);
+        } finally {
+            sample.stop(timer(STREAMING));
+        }
+    }
+
+    /**
+     * Sorts the given {@code Document} with the {@value #DOM} engine, since it has already been parsed.
+     */
+    @Override
+    public String sort(Document document, SortOptions options) throws XmlSortingException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return xmlSorter.sort(document, options);
+        } finally {
+            sample.stop(timer(DOM));
+        }
+    }
+
+    private Timer timer(String engine) {
+        return Timer.builder(ENGINE_METRIC)
+                .description("Sort operations by the engine sorting them")
+                .tag("engine", engine)
+                .register(meterRegistry);
+    }
+
+    private DistributionSummary inputSize(String engine) {
+        return DistributionSummary.builder(INPUT_SIZE_METRIC)
+                .description("Size of the documents by the engine sorting them")
+                .baseUnit("bytes")
+                .tag("engine", engine)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,197 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import org.w3c.dom.*;
+
+import javax.xml.XMLConstants;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@code Document} in a compact canonical form, modeled on Canonical XML 1.0 with comments.
+ * <p>
+ * The document is written directly by walking the DOM, which is much cheaper than a {@code Transformer}:
+ * </p>
+ * <ul>
+ *     <li>No XML declaration and no whitespace between nodes, apart from a line feed between the root element and
+ *     the comments and processing instructions around it.</li>
+ *     <li>Empty elements are written as a start and an end tag, and CDATA sections as escaped text.</li>
+ *     <li>Attribute values are always double-quoted, with {@code &}, {@code <}, {@code "} and line breaks and tabs
+ *     escaped; text has {@code &}, {@code <}, {@code >} and carriage returns escaped.</li>
+ *     <li>Namespace declarations come first, ordered by prefix, and are only written where they change the namespaces
+ *     in scope. Attributes follow, ordered by namespace URI and then by local name.</li>
+ * </ul>
+ * <p>
+ * An instance writes to a single {@code StringBuilder} and is not thread-safe.
+ * </p>
+ */
+public class CanonicalXmlWriter {
+
+    private static final Comparator<Attr> NAMESPACE_ORDER =
+            Comparator.comparing(attr -> XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getName()) ? "" : localName(attr));
+    private static final Comparator<Attr> ATTRIBUTE_ORDER =
+            Comparator.<Attr, String>comparing(attr -> nullToEmpty(attr.getNamespaceURI()))
+                    .thenComparing(CanonicalXmlWriter::localName);
+
+    private final StringBuilder out;
+    private final SortDeadline.Checkpoint checkpoint;
+
+    public CanonicalXmlWriter(StringBuilder out) {
+        this(out, SortDeadline.NONE);
+    }
+
+    /**
+     * Creates a writer that checks the given deadline while writing the elements.
+     *
+     * @param out      the destination of the canonical form
+     * @param deadline the deadline of the sort operation writing the document
+     */
+    public CanonicalXmlWriter(StringBuilder out, SortDeadline deadline) {
+        this.out = out;
+        this.checkpoint = deadline.checkpoint();
+    }
+
+    /**
+     * Writes the given document in canonical form.
+     *
+     * @param document the document to write
+     */
+    public void write(Document document) {
+        boolean afterRoot = false;
+        for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE -> {
+                    writeElement((Element) child, Map.of());
+                    afterRoot = true;
+                }
+                case Node.COMMENT_NODE, Node.PROCESSING_INSTRUCTION_NODE -> {
+                    if (afterRoot) {
+                        out.append('\n');
+                    }
+                    writeNonElement(child);
+                    if (!afterRoot) {
+                        out.append('\n');
+                    }
+                }
+                default -> {
+                    // Nothing else outside the root element is part of the canonical form
+                }
+            }
+        }
+    }
+
+    private void writeElement(Element element, Map<String, String> namespacesInScope) {
+        checkpoint.check();
+        out.append('<').append(element.getNodeName());
+
+        List<Attr> namespaces = new ArrayList<>();
+        List<Attr> attributes = new ArrayList<>();
+        NamedNodeMap attributeMap = element.getAttributes();
+        for (int i = 0; i < attributeMap.getLength(); i++) {
+            Attr attr = (Attr) attributeMap.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                namespaces.add(attr);
+            } else {
+                attributes.add(attr);
+            }
+        }
+
+        Map<String, String> childNamespaces = namespacesInScope;
+        if (!namespaces.isEmpty()) {
+            namespaces.sort(NAMESPACE_ORDER);
+            for (Attr namespace : namespaces) {
+                String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(namespace.getName()) ? "" : localName(namespace);
+                // A declaration is superfluous when an ancestor already declares the same namespace for the prefix
+                if (namespace.getValue().equals(namespacesInScope.getOrDefault(prefix, ""))) {
+                    continue;
+                }
+                if (childNamespaces == namespacesInScope) {
+                    childNamespaces = new HashMap<>(namespacesInScope);
+                }
+                childNamespaces.put(prefix, namespace.getValue());
+                out.append(' ').append(namespace.getName()).append("=\"");
+                appendAttributeValue(namespace.getValue());
+                out.append('"');
+            }
+        }
+        if (attributes.size() > 1) {
+            attributes.sort(ATTRIBUTE_ORDER);
+        }
+        for (Attr attr : attributes) {
+            out.append(' ').append(attr.getName()).append("=\"");
+            appendAttributeValue(attr.getValue());
+            out.append('"');
+        }
+        out.append('>');
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                writeElement((Element) child, childNamespaces);
+            } else {
+                writeNonElement(child);
+            }
+        }
+        out.append("</").append(element.getNodeName()).append('>');
+    }
+
+    private void writeNonElement(Node node) {
+        switch (node.getNodeType()) {
+            case Node.TEXT_NODE, Node.CDATA_SECTION_NODE -> appendText(node.getNodeValue());
+            case Node.COMMENT_NODE -> out.append("<!--").append(node.getNodeValue()).append("-->");
+            case Node.PROCESSING_INSTRUCTION_NODE -> {
+                ProcessingInstruction instruction = (ProcessingInstruction) node;
+                out.append("<?").append(instruction.getTarget());
+                if (!instruction.getData().isEmpty()) {
+                    out.append(' ').append(instruction.getData());
+                }
+                out.append("?>");
+            }
+            case Node.ENTITY_REFERENCE_NODE -> {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNonElement(child);
+                }
+            }
+            default -> {
+                // Other node types have no canonical form
+            }
+        }
+    }
+
+    private void appendText(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append("&gt;");
+                case '\r' -> out.append("&#xD;");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    private void appendAttributeValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '"' -> out.append("&quot;");
+                case '\t' -> out.append("&#x9;");
+                case '\n' -> out.append("&#xA;");
+                case '\r' -> out.append("&#xD;");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() == null ? node.getNodeName() : node.getLocalName();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,164 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of the SHA-256 hashes of the files of a directory that are known to be sorted, so that they are not
+ * sorted again until their content changes, even across restarts.
+ * <p>
+ * The index is a text file with one {@code <hash> <path>} line per file, the path being relative to the indexed
+ * directory, so that the directory can be moved along with its index. Its first line records a fingerprint of the
+ * sort options and of the {@link XmlSorter#OUTPUT_VERSION output version}, and an index recorded with other options
+ * or by another version is discarded, since the files it lists may not be sorted the way they are now expected to be.
+ * The index is saved to a temporary file which then replaces the previous one, so a crash never leaves a truncated
+ * index behind.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+@Log4j2
+public class ContentHashIndex {
+
+    private static final String OPTIONS_PREFIX = "# options ";
+
+    private final Path directory;
+    private final Path indexFile;
+    private final String optionsFingerprint;
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the index of the given directory, or starts an empty one if there is none or it cannot be read.
+     *
+     * @param directory the indexed directory
+     * @param indexFile the file the index is stored in
+     * @param options   the options the files are sorted with
+     */
+    public ContentHashIndex(Path directory, Path indexFile, SortOptions options) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.indexFile = indexFile;
+        this.optionsFingerprint =
+                hash(("v" + XmlSorter.OUTPUT_VERSION + " " + options).getBytes(StandardCharsets.UTF_8));
+        load();
+    }
+
+    /**
+     * Computes the hash of the given content, as recorded in the index.
+     *
+     * @param content the content to hash, in one or more consecutive parts
+     * @return the SHA-256 hash of the content, in hexadecimal
+     */
+    public static String hash(byte[]... content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : content) {
+                digest.update(part);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether the given file is known to be sorted with the given content hash.
+     *
+     * @param file the file to check
+     * @param hash the hash of the current content of the file
+     * @return {@code true} if the file was recorded as sorted with that very content
+     */
+    public boolean isSorted(Path file, String hash) {
+        return hash.equals(hashes.get(key(file)));
+    }
+
+    /**
+     * Records the given file as sorted, with the given content hash.
+     *
+     * @param file the sorted file
+     * @param hash the hash of the sorted content of the file
+     */
+    public void recordSorted(Path file, String hash) {
+        hashes.put(key(file), hash);
+    }
+
+    /**
+     * Forgets the given file, like when it is deleted or can no longer be sorted.
+     *
+     * @param file the file to forget
+     */
+    public void remove(Path file) {
+        hashes.remove(key(file));
+    }
+
+    /**
+     * @return the number of files recorded as sorted
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Saves the index to its file, replacing the previous one atomically.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void save() throws IOException {
+        Path parent = indexFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempFile = Files.createTempFile(parent, "." + indexFile.getFileName(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(OPTIONS_PREFIX + optionsFingerprint);
+                writer.newLine();
+                for (Map.Entry<String, String> entry : new TreeMap<>(hashes).entrySet()) {
+                    writer.write(entry.getValue() + " " + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            if (!(OPTIONS_PREFIX + optionsFingerprint).equals(reader.readLine())) {
+                log.info("Discarding the index {}, recorded with other sort options or by another version", indexFile);
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    hashes.put(line.substring(separator + 1), line.substring(0, separator));
+                }
+            }
+            log.debug("Loaded {} sorted files from the index {}", hashes.size(), indexFile);
+        } catch (IOException e) {
+            log.warn("Error reading the index {}, starting from an empty one", indexFile, e);
+            hashes.clear();
+        }
+    }
+
+    private String key(Path file) {
+        // Forward slashes keep the index portable across platforms
+        return directory.relativize(file.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+}
@@ -0,0 +1,132 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.Value;
+
+import java.util.Arrays;
+
+/**
+ * The shape of an XML document, as gathered by a quick {@link #scan(String) scan} of its content before parsing it:
+ * its size, how many elements and attributes it has, how deep its element tree is, and how many child elements its
+ * widest element has.
+ * <p>
+ * The scan only looks at the markup and does not check that the content is well-formed, so the shape of malformed
+ * content is approximate, and left to the parser to reject.
+ * </p>
+ */
+@Value
+public class DocumentShape {
+
+    /**
+     * The size of the content in bytes, once encoded in UTF-8.
+     */
+    long size;
+
+    /**
+     * The number of elements, the root element included.
+     */
+    long elementCount;
+
+    /**
+     * The depth of the element tree, the root element included.
+     */
+    int depth;
+
+    /**
+     * The largest number of child elements of a single element.
+     */
+    int maxFanOut;
+
+    /**
+     * The number of attributes, namespace declarations included.
+     */
+    long attributeCount;
+
+    /**
+     * @return the average number of attributes per element
+     */
+    public double getAttributeDensity() {
+        return elementCount == 0 ? 0 : (double) attributeCount / elementCount;
+    }
+
+    /**
+     * Scans the markup of the given XML content, skipping its text, comments, CDATA sections and processing
+     * instructions.
+     *
+     * @param xmlContent the XML content to scan
+     * @return the shape of the document
+     */
+    public static DocumentShape scan(String xmlContent) {
+        long elementCount = 0;
+        long attributeCount = 0;
+        int maxDepth = 0;
+        int maxFanOut = 0;
+        // The number of child elements of every open element, by depth
+        int[] childCounts = new int[32];
+        int depth = 0;
+
+        int length = xmlContent.length();
+        int i = xmlContent.indexOf('<');
+        while (i >= 0 && i + 1 < length) {
+            char next = xmlContent.charAt(i + 1);
+            int end;
+            if (next == '?') {
+                end = endOf(xmlContent, "?>", i + 2);
+            } else if (next == '!') {
+                if (xmlContent.startsWith("<!--", i)) {
+                    end = endOf(xmlContent, "-->", i + 4);
+                } else if (xmlContent.startsWith("<![CDATA[", i)) {
+                    end = endOf(xmlContent, "]]>", i + 9);
+                } else {
+                    end = endOf(xmlContent, ">", i + 2);
+                }
+            } else if (next == '/') {
+                depth = Math.max(depth - 1, 0);
+                end = endOf(xmlContent, ">", i + 2);
+            } else {
+                // A start tag, whose attribute values may hold any character but their quote
+                elementCount++;
+                if (depth > 0) {
+                    maxFanOut = Math.max(maxFanOut, ++childCounts[depth - 1]);
+                }
+                end = -1;
+                char quote = 0;
+                for (int j = i + 1; j < length; j++) {
+                    char c = xmlContent.charAt(j);
+                    if (quote != 0) {
+                        if (c == quote) {
+                            quote = 0;
+                        }
+                    } else if (c == '"' || c == '\'') {
+                        quote = c;
+                    } else if (c == '=') {
+                        attributeCount++;
+                    } else if (c == '>') {
+                        end = j + 1;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    break;
+                }
+                maxDepth = Math.max(maxDepth, depth + 1);
+                if (xmlContent.charAt(end - 2) != '/') {
+                    if (depth == childCounts.length) {
+                        childCounts = Arrays.copyOf(childCounts, depth * 2);
+                    }
+                    childCounts[depth++] = 0;
+                }
+            }
+            if (end < 0) {
+                break;
+            }
+            i = xmlContent.indexOf('<', end);
+        }
+        return new DocumentShape(SorterEvents.utf8Length(xmlContent), elementCount, maxDepth, maxFanOut,
+                attributeCount);
+    }
+
+    private static int endOf(String xmlContent, String delimiter, int from) {
+        int index = xmlContent.indexOf(delimiter, from);
+        return index < 0 ? -1 : index + delimiter.length();
+    }
+}
@@ -1,16 +1,70 @@
 package dev.hrrezaei.xml.sorter.service;
 
-import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.*;
+
+
+/**
+ * Comparator for sorting sibling nodes based on their names, attributes, text content and nested elements.
+ * <p>
+ * Siblings with the same name are first compared by their subtree hashes, so that identical siblings are detected
+ * without walking the rest of the comparison steps. Identical siblings compare as equal, once confirmed by
+ * {@link SubtreeHasher#isSameSubtree(Node, Node)}, so that siblings whose hashes collide are still told apart. Every
+ * subtree is only confirmed once, after which the check takes constant time.
+ * </p>
+ * <p>
+ * Attribute values and text contents are compared as strings, unless value types are given, in which case they are
+ * parsed once into {@link TypedValue typed values}, cached per node, and compared by their typed value.
+ * </p>
+ */
+public class NodeComparator implements Comparator<Node> {
 
+    private final SubtreeHasher subtreeHasher;
+    private final Set<ValueType> valueTypes;
+    // The typed attribute values and text contents, by attribute and element, only used with value types
+    private final Map<Node, TypedValue> typedValues = new IdentityHashMap<>();
 
-public class NodeComparator implements Comparator<Node> {
+    public NodeComparator() {
+        this(new SubtreeHasher());
+    }
+
+    /**
+     * Creates a comparator that shares the given hasher, so that subtree hashes are computed once per sort operation.
+     *
+     * @param subtreeHasher the hasher used to detect identical siblings
+     */
+    public NodeComparator(SubtreeHasher subtreeHasher) {
+        this(subtreeHasher, Set.of());
+    }
+
+    /**
+     * Creates a comparator that compares the values of the given types by their typed value.
+     *
+     * @param subtreeHasher the hasher used to detect identical siblings
+     * @param valueTypes    the types of the values to compare by their typed value, or none to compare all values as
+     *                      strings
+     */
+    public NodeComparator(SubtreeHasher subtreeHasher, Set<ValueType> valueTypes) {
+        this.subtreeHasher = subtreeHasher;
+        this.valueTypes = valueTypes;
+    }
+
+    public SubtreeHasher getSubtreeHasher() {
+        return subtreeHasher;
+    }
+
+    /**
+     * Takes over the subtree hashes and typed values computed by another comparator of the same sort operation, like
+     * one used by another thread, so that they are not computed again.
+     *
+     * @param other the comparator whose results are taken over, which must no longer be in use
+     */
+    public void absorb(NodeComparator other) {
+        subtreeHasher.absorb(other.subtreeHasher);
+        typedValues.putAll(other.typedValues);
+    }
 
     @Override
     public int compare(Node node1, Node node2) {
@@ -20,9 +74,16 @@ public class NodeComparator implements Comparator<Node> {
             return nameComparison;
         }
 
+        // Fast path: identical siblings have the same subtree hash, which is confirmed since different ones may collide
+        long hash1 = subtreeHasher.hash(node1);
+        long hash2 = subtreeHasher.hash(node2);
+        if (hash1 == hash2 && subtreeHasher.isSameSubtree(node1, node2)) {
+            return 0;
+        }
+
         // Step 2: Compare sorted lists of attribute names lexicographically
-        NamedNodeMap attrs1 = node1.getAttributes();
-        NamedNodeMap attrs2 = node2.getAttributes();
+        NamedNodeMap attrs1 = node1.hasAttributes() ? node1.getAttributes() : null;
+        NamedNodeMap attrs2 = node2.hasAttributes() ? node2.getAttributes() : null;
 
         List<String> attrNames1 = getSortedAttributeNames(attrs1);
         List<String> attrNames2 = getSortedAttributeNames(attrs2);
@@ -38,16 +99,48 @@ public class NodeComparator implements Comparator<Node> {
             return attrValuesComparison;
         }
 
-        // Step 4: Compare text content lexicographically
-        String textContent1 = getTextContent(node1);
-        String textContent2 = getTextContent(node2);
-
-        int textComparison = textContent1.compareTo(textContent2);
+        // Step 4: Compare text content lexicographically, or by its typed value
+        int textComparison = valueTypes.isEmpty()
+                ? getTextContent(node1).compareTo(getTextContent(node2))
+                : typedTextContent(node1).compareTo(typedTextContent(node2));
         if (textComparison != 0) {
             return textComparison;
         }
 
-        throw new RuntimeException("Insufficient comparison logic!");
+        // Step 5: Compare the sorted child elements one by one
+        int childrenComparison = compareChildElements(node1, node2);
+        if (childrenComparison != 0) {
+            return childrenComparison;
+        }
+
+        // The subtrees only differ in the placement of non-element nodes; fall back to their hashes to stay consistent,
+        // and to their exact content when the hashes collide
+        int hashComparison = Long.compare(hash1, hash2);
+        return hashComparison != 0 ? hashComparison : subtreeHasher.compareExactly(node1, node2);
+    }
+
+    private int compareChildElements(Node node1, Node node2) {
+        List<Node> children1 = getSortedChildElements(node1);
+        List<Node> children2 = getSortedChildElements(node2);
+        int minSize = Math.min(children1.size(), children2.size());
+        for (int i = 0; i < minSize; i++) {
+            int comparison = compare(children1.get(i), children2.get(i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(children1.size(), children2.size());
+    }
+
+    private List<Node> getSortedChildElements(Node node) {
+        List<Node> childElements = new ArrayList<>();
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                childElements.add(child);
+            }
+        }
+        childElements.sort(this);
+        return childElements;
     }
 
     private List<String> getSortedAttributeNames(NamedNodeMap attrs) {
@@ -79,9 +172,11 @@ public class NodeComparator implements Comparator<Node> {
 
     private int compareAttributeValues(NamedNodeMap attrs1, NamedNodeMap attrs2, List<String> sortedAttrNames) {
         for (String attrName : sortedAttrNames) {
-            String value1 = attrs1.getNamedItem(attrName).getNodeValue();
-            String value2 = attrs2.getNamedItem(attrName).getNodeValue();
-            int valueComparison = value1.compareTo(value2);
+            Node attr1 = attrs1.getNamedItem(attrName);
+            Node attr2 = attrs2.getNamedItem(attrName);
+            int valueComparison = valueTypes.isEmpty()
+                    ? attr1.getNodeValue().compareTo(attr2.getNodeValue())
+                    : typedValue(attr1).compareTo(typedValue(attr2));
             if (valueComparison != 0) {
                 return valueComparison;
             }
@@ -89,6 +184,20 @@ public class NodeComparator implements Comparator<Node> {
         return 0;
     }
 
+    private TypedValue typedValue(Node attr) {
+        return typedValues.computeIfAbsent(attr, key -> TypedValue.parse(key.getNodeValue(), valueTypes));
+    }
+
+    private TypedValue typedTextContent(Node node) {
+        TypedValue typedValue = typedValues.get(node);
+        if (typedValue == null) {
+            // Not computed in computeIfAbsent, since computing the text content compares, and caches, child nodes
+            typedValue = TypedValue.parse(getTextContent(node), valueTypes);
+            typedValues.put(node, typedValue);
+        }
+        return typedValue;
+    }
+
     private String getTextContent(Node node) {
         StringBuilder textContent = new StringBuilder();
         textContent.append(node.getNodeValue() == null ? "" : node.getNodeValue());
@@ -102,7 +211,7 @@ public class NodeComparator implements Comparator<Node> {
         }
 
         // Sort child nodes
-        childNodes.sort(new NodeComparator());
+        childNodes.sort(this);
 
         // Process sorted child nodes
         for (Node sortedChild : childNodes) {
@@ -0,0 +1,413 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.w3c.dom.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.util.*;
+
+import static dev.hrrezaei.xml.sorter.service.NodeConvertor.convertAttributesToList;
+import static dev.hrrezaei.xml.sorter.service.NodeConvertor.convertNodeToExpandedString;
+
+/**
+ * Sorts the attributes and child elements of DOM elements, either in place or into a sorted copy.
+ * <p>
+ * Text nodes that contain only whitespace are dropped and every other non-element node is trimmed, so that the
+ * sorted tree can be re-indented when serialized. Elements outside the subtrees selected by the
+ * {@link PathSelector} of the options keep the original order of their attributes and children.
+ * </p>
+ * <p>
+ * The {@link SortOptions#getDeadline() deadline} of the options is checked while visiting the elements and while
+ * comparing siblings, so that the sort stops with a {@code CancellationException} once it is over.
+ * </p>
+ * <p>
+ * An instance holds the state of a single sort operation, like the cached subtree hashes, and is not thread-safe.
+ * </p>
+ */
+@Log4j2
+public class NodeSorter {
+
+    private final SortOptions options;
+    private final NodeComparator comparator;
+    private final Comparator<Node> checkedComparator;
+    private final SortDeadline.Checkpoint checkpoint;
+    private final PathSelector pathSelector;
+
+    // The qualified names of the element being sorted and its ancestors, only tracked when selecting by path
+    private final List<String> path = new ArrayList<>();
+
+    // The shape of the sorted tree, reported to the Flight Recorder
+    private long elementCount;
+    private int depth;
+    private int maxDepth;
+    private int largestSiblingGroup;
+
+    public NodeSorter(SortOptions options) {
+        this.options = options;
+        this.comparator = new NodeComparator(new SubtreeHasher(), options.getValueTypes());
+        this.checkedComparator = options.getDeadline().checking(comparator);
+        this.checkpoint = options.getDeadline().checkpoint();
+        this.pathSelector = new PathSelector(options);
+    }
+
+    /**
+     * @return the number of elements sorted so far, collapsed duplicates excluded when sorting into a copy
+     */
+    public long getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * @return the depth of the deepest element sorted so far, the element the sort started from being at depth 1
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the largest number of child elements of a single element sorted so far
+     */
+    public int getLargestSiblingGroup() {
+        return largestSiblingGroup;
+    }
+
+    /**
+     * Sorts the given root element and its subtree in place.
+     *
+     * @param root the root element of the document
+     */
+    public void sortInPlace(Element root) {
+        sortInPlace(root, Collections.emptyList());
+    }
+
+    /**
+     * Sorts the given element and its subtree in place.
+     * <p>
+     * The path of the parent element is used to match the include and exclude paths of the options, when the element
+     * has been detached from its document, e.g. while streaming. The parent element itself is considered unsorted.
+     * </p>
+     *
+     * @param element    the element to sort
+     * @param parentPath the qualified names of the ancestors of the element, starting from the root element
+     */
+    public void sortInPlace(Element element, List<String> parentPath) {
+        path.clear();
+        path.addAll(parentPath);
+        sortNode(element, false, false);
+    }
+
+    /**
+     * Builds a sorted copy of the given Document without modifying it.
+     * <p>
+     * Nodes outside the root element (e.g. top-level comments) are copied as they are, while the root element is
+     * copied recursively with its attributes and child elements appended in sorted order.
+     * </p>
+     *
+     * @param source the Document to copy
+     * @return a new Document holding the sorted content of {@code source}
+     * @throws ParserConfigurationException if a new Document cannot be created
+     */
+    public Document sortedCopy(Document source) throws ParserConfigurationException {
+        Document target = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        target.setXmlStandalone(source.getXmlStandalone());
+        path.clear();
+        for (Node child = source.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                target.appendChild(copySortedElement(target, (Element) child, 1, false, false));
+            } else if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+                target.appendChild(target.importNode(child, true));
+            }
+        }
+        return target;
+    }
+
+    private void sortNode(Element element, boolean parentSelected, boolean parentExcluded) {
+        checkpoint.check();
+        enterElement(element);
+        boolean excluded = parentExcluded || isExcluded();
+        boolean selected = !excluded && (parentSelected || isIncluded());
+
+        // Sort attributes
+        if (selected) {
+            sortAttributes(element);
+        }
+
+        // Recursively sort child nodes
+        SortedChildren children = collectSortedChildren(element, selected);
+
+        // Record the number of collapsed duplicates, before the attributes of the child elements get sorted
+        children.duplicateCounts().forEach((childElement, count) ->
+                ((Element) childElement).setAttribute(options.getDuplicateCountAttribute(), String.valueOf(count)));
+
+        // Sort attributes of child elements and recursively sort their children
+        for (Node childElement : children.elements()) {
+            sortNode((Element) childElement, selected, excluded);
+        }
+
+        // Remove all child nodes
+        while (element.hasChildNodes()) {
+            element.removeChild(element.getFirstChild());
+        }
+
+        // Append sorted element nodes
+        for (Node childElement : children.elements()) {
+            for (Node childComment : getProceedingsOfNode(childElement, children.elementsAfterNonElements())) {
+                element.appendChild(trimmed(childComment));
+            }
+            element.appendChild(childElement);
+        }
+        for (Node childElement : children.bottomNonElements()) {
+            element.appendChild(trimmed(childElement));
+        }
+        exitElement();
+    }
+
+    private Element copySortedElement(Document target, Element source, int duplicateCount,
+                                      boolean parentSelected, boolean parentExcluded) {
+        checkpoint.check();
+        enterElement(source);
+        boolean excluded = parentExcluded || isExcluded();
+        boolean selected = !excluded && (parentSelected || isIncluded());
+        Element copy = target.createElementNS(source.getNamespaceURI(), source.getNodeName());
+
+        // Add attributes in sorted order, along with the number of collapsed duplicates if any
+        List<Attr> attrList = new ArrayList<>();
+        for (Attr attr : convertAttributesToList(source.hasAttributes() ? source.getAttributes() : null)) {
+            attrList.add((Attr) target.importNode(attr, true));
+        }
+        if (duplicateCount > 1) {
+            Attr countAttr = target.createAttribute(options.getDuplicateCountAttribute());
+            countAttr.setValue(String.valueOf(duplicateCount));
+            attrList.removeIf(attr -> attr.getName().equals(countAttr.getName()));
+            attrList.add(countAttr);
+        }
+        if (selected) {
+            attrList.sort(new AttributeComparator());
+        }
+        for (Attr attr : attrList) {
+            copy.setAttributeNodeNS(attr);
+        }
+
+        // Add child nodes in sorted order
+        SortedChildren children = collectSortedChildren(source, selected);
+        for (Node childElement : children.elements()) {
+            for (Node childComment : getProceedingsOfNode(childElement, children.elementsAfterNonElements())) {
+                copy.appendChild(trimmed(target.importNode(childComment, true)));
+            }
+            int childDuplicateCount = children.duplicateCounts().getOrDefault(childElement, 1);
+            copy.appendChild(copySortedElement(target, (Element) childElement, childDuplicateCount, selected, excluded));
+        }
+        for (Node childElement : children.bottomNonElements()) {
+            copy.appendChild(trimmed(target.importNode(childElement, true)));
+        }
+        exitElement();
+        return copy;
+    }
+
+    /**
+     * Collects the child nodes of the given element and sorts its child elements, without modifying the element.
+     * <p>
+     * Text nodes that contain only whitespace are dropped. Every other non-element node (like comments) is kept
+     * right before the element node that followed it originally, or at the bottom if no element follows it.
+     * </p>
+     * <p>
+     * When {@link SortOptions#isCollapseDuplicates()} is set, only the first of several identical child elements is
+     * kept, and the number of identical copies is recorded for it.
+     * </p>
+     *
+     * @param element  the element whose children are collected
+     * @param selected whether the child elements should be sorted, or keep their original order
+     * @return the sorted child elements along with their preceding and trailing non-element nodes
+     */
+    private SortedChildren collectSortedChildren(Element element, boolean selected) {
+        List<Node> childElements = new ArrayList<>();
+
+        // Keep Non-Element nodes (like comments) right before the next Element node
+        List<Node> nonElementChildren = new ArrayList<>();
+        Map<Node, List<Node>> elementsAfterNonElements = new HashMap<>();
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            // Ignore text nodes that contain only whitespace
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                if (child.getTextContent() == null || child.getTextContent().trim().isEmpty()) {
+                    continue;
+                }
+            }
+
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                nonElementChildren.add(child);
+            } else {
+                childElements.add(child);
+                if (!nonElementChildren.isEmpty()) {
+                    elementsAfterNonElements.put(child, nonElementChildren);
+                    nonElementChildren = new ArrayList<>();
+                }
+            }
+        }
+        List<Node> bottomNonElementChildren = nonElementChildren.isEmpty() ? Collections.emptyList() : nonElementChildren;
+
+        largestSiblingGroup = Math.max(largestSiblingGroup, childElements.size());
+
+        Map<Node, Integer> duplicateCounts = Collections.emptyMap();
+        if (selected) {
+            // Sort child elements of this node, in parallel shards when there are many of them
+            SorterEvents.SlowSiblingSortEvent event = new SorterEvents.SlowSiblingSortEvent();
+            event.begin();
+            if (options.getParallelism() > 1) {
+                ShardedSort.sort(childElements, options.getParallelism(), options.getMinShardSize(),
+                        () -> new NodeComparator(new SubtreeHasher(), options.getValueTypes()), comparator,
+                        options.getDeadline());
+            } else {
+                childElements.sort(checkedComparator);
+            }
+            event.report(element, childElements.size(), options);
+
+            if (options.isCollapseDuplicates()) {
+                duplicateCounts = collapseDuplicates(childElements, elementsAfterNonElements);
+            }
+        }
+
+        return new SortedChildren(childElements, elementsAfterNonElements, bottomNonElementChildren, duplicateCounts);
+    }
+
+    /**
+     * Removes the exact duplicates from the given sorted list of sibling elements.
+     * <p>
+     * Since identical siblings compare as equal, duplicates are always adjacent once sorted. Each candidate is
+     * confirmed by an exact subtree comparison, so that a hash collision can never drop an element.
+     * </p>
+     *
+     * @param sortedElements           the sorted sibling elements, from which the duplicates are removed
+     * @param elementsAfterNonElements the non-element nodes that precede each element
+     * @return the number of copies of each kept element that had duplicates
+     */
+    private Map<Node, Integer> collapseDuplicates(List<Node> sortedElements,
+                                                  Map<Node, List<Node>> elementsAfterNonElements) {
+        SubtreeHasher hasher = comparator.getSubtreeHasher();
+        Map<Node, Integer> duplicateCounts = new IdentityHashMap<>();
+        List<Node> distinctElements = new ArrayList<>(sortedElements.size());
+        for (Node element : sortedElements) {
+            Node previous = distinctElements.isEmpty() ? null : distinctElements.get(distinctElements.size() - 1);
+            if (previous != null && isDuplicate(previous, element, elementsAfterNonElements, hasher)) {
+                duplicateCounts.merge(previous, 2, (count, ignored) -> count + 1);
+            } else {
+                distinctElements.add(element);
+            }
+        }
+        if (distinctElements.size() < sortedElements.size()) {
+            log.debug("Collapsed {} duplicate elements out of {}", sortedElements.size() - distinctElements.size(), sortedElements.size());
+            sortedElements.clear();
+            sortedElements.addAll(distinctElements);
+        }
+        return duplicateCounts;
+    }
+
+    private boolean isDuplicate(Node element1, Node element2, Map<Node, List<Node>> elementsAfterNonElements,
+                                SubtreeHasher hasher) {
+        if (!hasher.isSameSubtree(element1, element2)) {
+            return false;
+        }
+        List<Node> proceedings1 = getProceedingsOfNode(element1, elementsAfterNonElements);
+        List<Node> proceedings2 = getProceedingsOfNode(element2, elementsAfterNonElements);
+        if (proceedings1.size() != proceedings2.size()) {
+            return false;
+        }
+        for (int i = 0; i < proceedings1.size(); i++) {
+            if (!hasher.isSameSubtree(proceedings1.get(i), proceedings2.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Node trimmed(Node nonElement) {
+        if (nonElement.getTextContent() != null) {
+            nonElement.setTextContent(nonElement.getTextContent().trim());
+        }
+        return nonElement;
+    }
+
+    private void sortAttributes(Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        if (attributes != null && attributes.getLength() > 1) {
+            List<Attr> attrList = convertAttributesToList(attributes);
+
+            // Remove all attributes
+            for (Attr attr : attrList) {
+                element.removeAttributeNode(attr);
+            }
+
+            // Sort attributes
+            attrList.sort(new AttributeComparator());
+
+            // Add attributes back in sorted order
+            for (Attr attr : attrList) {
+                element.setAttributeNode(attr);
+            }
+        }
+    }
+
+    private void enterElement(Element element) {
+        elementCount++;
+        maxDepth = Math.max(maxDepth, ++depth);
+        if (!pathSelector.isSelectingAll()) {
+            path.add(element.getNodeName());
+        }
+    }
+
+    private void exitElement() {
+        depth--;
+        if (!pathSelector.isSelectingAll()) {
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private boolean isIncluded() {
+        return pathSelector.isSelectingAll() || pathSelector.isIncluded(path);
+    }
+
+    private boolean isExcluded() {
+        return !pathSelector.isSelectingAll() && pathSelector.isExcluded(path);
+    }
+
+    /**
+     * Retrieves the list of non-element nodes (e.g., comments, processing instructions)
+     * that immediately precede the specified element node within its parent element's child nodes.
+     * <p>
+     * The method uses a map where each key is an element node and the corresponding value
+     * is a list of non-element nodes that were originally located directly before that element.
+     * Since the {@code Node} class does not override {@code equals()} and {@code hashCode()},
+     * node identity is based on object reference (memory address).
+     * Therefore, it's crucial that the same {@code Node} instances are used both when
+     * populating the map and when calling this method.
+     * </p>
+     *
+     * @param node                     the element node whose preceding non-element siblings are to be retrieved
+     * @param elementsAfterNonElements a map associating element nodes with their preceding non-element siblings
+     * @return a list of non-element nodes that precede the specified element node,
+     * or an empty list if none are found or if the map is null or empty
+     */
+    private List<Node> getProceedingsOfNode(Node node, Map<Node, List<Node>> elementsAfterNonElements) {
+        if (elementsAfterNonElements == null || elementsAfterNonElements.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Only build the messages when logged: expanding every sibling for every element is quadratic
+        log.debug("Element keys: {}", () -> elementsAfterNonElements.keySet().stream().map(NodeConvertor::convertNodeToExpandedString).toList());
+        log.debug("Target element: {}", () -> convertNodeToExpandedString(node));
+        log.debug("Element keys contain the target element: {}", () -> elementsAfterNonElements.containsKey(node));
+
+        return elementsAfterNonElements.getOrDefault(node, Collections.emptyList());
+    }
+
+    /**
+     * The sorted child elements of an element, along with the non-element nodes that precede each of them, the
+     * non-element nodes that are left at the bottom, and the number of copies of the elements that had duplicates.
+     */
+    private record SortedChildren(List<Node> elements,
+                                  Map<Node, List<Node>> elementsAfterNonElements,
+                                  List<Node> bottomNonElements,
+                                  Map<Node, Integer> duplicateCounts) {
+    }
+}
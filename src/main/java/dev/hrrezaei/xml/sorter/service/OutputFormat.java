@@ -0,0 +1,26 @@
+package dev.hrrezaei.xml.sorter.service;
+
+/**
+ * The layout of the sorted XML content.
+ */
+public enum OutputFormat {
+
+    /**
+     * Every element on its own line, indented by 4 spaces per level, while text-only content stays on the line of its
+     * element. This is the original output of the sorter.
+     */
+    INDENTED,
+
+    /**
+     * No whitespace added between nodes, so a document without line breaks in its content is written on a single
+     * line. Meant for machine consumers, like the multi-document stream endpoint.
+     */
+    COMPACT,
+
+    /**
+     * A canonical form modeled on Canonical XML 1.0: compact, without an XML declaration, with normalized attribute
+     * quoting, ordering and escaping, and without superfluous namespace declarations. Equivalent documents therefore
+     * produce identical bytes, which suits hashing, signing and diff tools. See {@link CanonicalXmlWriter}.
+     */
+    CANONICAL
+}
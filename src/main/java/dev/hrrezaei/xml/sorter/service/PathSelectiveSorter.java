@@ -0,0 +1,443 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import lombok.extern.log4j.Log4j2;
+import org.w3c.dom.*;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sorts only the subtrees matching the include paths of the {@link SortOptions}, streaming everything else through.
+ * <p>
+ * The input is read with a StAX parser and copied to the output event by event, keeping the original order and
+ * whitespace. Only when an element matching an include path is reached, its subtree is parsed into a DOM, sorted by
+ * a {@link NodeSorter} (which also honors the exclude paths) and written out indented by 4 spaces, starting at the
+ * indentation of the original element. Memory and CPU usage are therefore proportional to the selected subtrees
+ * rather than to the whole document.
+ * </p>
+ * <p>
+ * Since the untouched regions are re-serialized from parser events, they are equivalent but not necessarily
+ * byte-identical to the input: e.g. attribute quotes and character references are normalized. With the
+ * {@link OutputFormat#COMPACT} format, the sorted subtrees are written without any added whitespace, while the
+ * untouched regions keep their original whitespace.
+ * </p>
+ */
+@Log4j2
+public class PathSelectiveSorter {
+
+    private static final String INDENT = "    ";
+    private static final String REPORT_CDATA_EVENT = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private final SortOptions options;
+    private final boolean indented;
+    private final PathSelector pathSelector;
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory;
+    private final DocumentBuilder documentBuilder;
+
+    /**
+     * Creates a sorter for the paths selected by the given options.
+     *
+     * @param options the options holding the include and exclude paths, along with the other sorting options
+     * @throws XmlSortingException if one of the paths is invalid, or the XML parsers cannot be created
+     */
+    public PathSelectiveSorter(SortOptions options) throws XmlSortingException {
+        this.options = options;
+        this.indented = options.getOutputFormat() == OutputFormat.INDENTED;
+        try {
+            this.pathSelector = new PathSelector(options);
+        } catch (IllegalArgumentException e) {
+            throw new XmlSortingException("Invalid element path: " + e.getMessage(), e);
+        }
+        this.inputFactory = XMLInputFactory.newDefaultFactory();
+        // Disable DTDs and external entities for security
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Report CDATA sections as such, rather than as plain characters
+        if (inputFactory.isPropertySupported(REPORT_CDATA_EVENT)) {
+            inputFactory.setProperty(REPORT_CDATA_EVENT, true);
+        }
+        this.outputFactory = XMLOutputFactory.newDefaultFactory();
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            this.documentBuilder = factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new XmlSortingException("Error creating the document builder for the selected subtrees", e);
+        }
+    }
+
+    /**
+     * Reads the XML content from the given {@code Reader} and writes it to the given {@code Writer}, with only the
+     * selected subtrees sorted.
+     *
+     * @param reader the source of the XML content
+     * @param out    the destination of the partially sorted XML content
+     * @throws XmlSortingException if an error occurs during reading, parsing, sorting or writing
+     */
+    public void sort(Reader reader, Writer out) throws XmlSortingException {
+        try {
+            sort(inputFactory.createXMLStreamReader(reader), out);
+        } catch (XMLStreamException e) {
+            throw new XmlSortingException("Error reading the XML content", e);
+        }
+    }
+
+    /**
+     * Reads the XML content from the given {@code InputStream} and writes it to the given {@code Writer}, with only
+     * the selected subtrees sorted. The encoding of the input is detected from its XML declaration.
+     *
+     * @param inputStream the source of the XML content
+     * @param out         the destination of the partially sorted XML content
+     * @throws XmlSortingException if an error occurs during reading, parsing, sorting or writing
+     */
+    public void sort(InputStream inputStream, Writer out) throws XmlSortingException {
+        try {
+            sort(inputFactory.createXMLStreamReader(inputStream), out);
+        } catch (XMLStreamException e) {
+            throw new XmlSortingException("Error reading the XML content", e);
+        }
+    }
+
+    private void sort(XMLStreamReader xmlReader, Writer out) throws XmlSortingException {
+        XMLStreamWriter xmlWriter = null;
+        try {
+            xmlWriter = outputFactory.createXMLStreamWriter(out);
+            new Pass(xmlReader, xmlWriter, out).run();
+        } catch (XMLStreamException | IOException e) {
+            throw new XmlSortingException("Error sorting the selected paths of the XML content", e);
+        } finally {
+            close(xmlReader, xmlWriter);
+        }
+    }
+
+    private void close(XMLStreamReader xmlReader, XMLStreamWriter xmlWriter) {
+        try {
+            if (xmlReader != null) {
+                xmlReader.close();
+            }
+            if (xmlWriter != null) {
+                xmlWriter.close();
+            }
+        } catch (XMLStreamException e) {
+            log.warn("Error closing the XML streams", e);
+        }
+    }
+
+    /**
+     * The state of a single pass over the input.
+     */
+    private class Pass {
+
+        private final XMLStreamReader reader;
+        private final XMLStreamWriter writer;
+        private final Writer out;
+        private final SortDeadline.Checkpoint checkpoint = options.getDeadline().checkpoint();
+
+        // The qualified names of the current element and its ancestors
+        private final List<String> path = new ArrayList<>();
+        // Whether the current element or one of its ancestors is excluded
+        private final List<Boolean> excluded = new ArrayList<>();
+        // The start tag that has been read but not written yet, as it might turn out to be an empty element
+        private StartTag pendingStartTag;
+        // The whitespace following the last line break written, used to indent the sorted subtrees
+        private String currentIndent = "";
+
+        private Pass(XMLStreamReader reader, XMLStreamWriter writer, Writer out) {
+            this.reader = reader;
+            this.writer = writer;
+            this.out = out;
+        }
+
+        private void run() throws XMLStreamException, IOException, XmlSortingException {
+            writeXmlDeclaration();
+            while (reader.hasNext()) {
+                checkpoint.check();
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT && pendingStartTag != null) {
+                    pendingStartTag.write(writer, true);
+                    pendingStartTag = null;
+                    endElement();
+                    continue;
+                }
+                flushPendingStartTag();
+
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT -> startElement();
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        writer.writeEndElement();
+                        endElement();
+                    }
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE -> writeCharacters(reader.getText());
+                    case XMLStreamConstants.CDATA -> writer.writeCData(reader.getText());
+                    case XMLStreamConstants.COMMENT -> {
+                        writer.writeComment(reader.getText());
+                        writeLineBreakOutsideRoot();
+                    }
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION -> {
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        writeLineBreakOutsideRoot();
+                    }
+                    case XMLStreamConstants.ENTITY_REFERENCE -> writer.writeEntityRef(reader.getLocalName());
+                    case XMLStreamConstants.DTD -> throw new XmlSortingException("DOCTYPE declarations are not allowed");
+                    case XMLStreamConstants.END_DOCUMENT -> writer.writeEndDocument();
+                    default -> log.debug("Skipping XML event of type {}", event);
+                }
+            }
+            writer.flush();
+        }
+
+        private void writeXmlDeclaration() throws XMLStreamException, IOException {
+            if (reader.getVersion() == null) {
+                return;
+            }
+            StringBuilder declaration = new StringBuilder("<?xml version=\"").append(reader.getVersion()).append('"');
+            if (reader.getCharacterEncodingScheme() != null) {
+                declaration.append(" encoding=\"").append(reader.getCharacterEncodingScheme()).append('"');
+            }
+            if (reader.standaloneSet()) {
+                declaration.append(" standalone=\"").append(reader.isStandalone() ? "yes" : "no").append('"');
+            }
+            writer.flush();
+            out.write(declaration.append(indented ? "?>\n" : "?>").toString());
+        }
+
+        private void startElement() throws XMLStreamException, XmlSortingException {
+            String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+            path.add(name);
+            boolean isExcluded = (!excluded.isEmpty() && excluded.get(excluded.size() - 1)) || pathSelector.isExcluded(path);
+            excluded.add(isExcluded);
+
+            if (!isExcluded && pathSelector.isIncluded(path)) {
+                path.remove(path.size() - 1);
+                excluded.remove(excluded.size() - 1);
+                sortSubtree();
+            } else {
+                pendingStartTag = StartTag.read(reader);
+            }
+        }
+
+        private void endElement() throws XMLStreamException {
+            path.remove(path.size() - 1);
+            excluded.remove(excluded.size() - 1);
+            writeLineBreakOutsideRoot();
+        }
+
+        private void flushPendingStartTag() throws XMLStreamException {
+            if (pendingStartTag != null) {
+                pendingStartTag.write(writer, false);
+                pendingStartTag = null;
+            }
+        }
+
+        /**
+         * Parses the subtree of the current element into a DOM, sorts it and writes it out.
+         */
+        private void sortSubtree() throws XMLStreamException, XmlSortingException {
+            log.debug("Sorting the subtree at path {}/{}", String.join("/", path), reader.getLocalName());
+            Document document = documentBuilder.newDocument();
+            Element element = readElement(document);
+            new NodeSorter(options).sortInPlace(element, path);
+            writeElement(element, currentIndent);
+            writeLineBreakOutsideRoot();
+        }
+
+        private Element readElement(Document document) throws XMLStreamException, XmlSortingException {
+            Element element = createElement(document);
+            Node parent = element;
+            int depth = 1;
+            while (depth > 0) {
+                checkpoint.check();
+                int event = reader.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT -> {
+                        Element child = createElement(document);
+                        parent.appendChild(child);
+                        parent = child;
+                        depth++;
+                    }
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        parent = parent.getParentNode();
+                        depth--;
+                    }
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE -> {
+                        // The parser may report a single text node as several events, e.g. around entities
+                        if (parent.getLastChild() instanceof Text text && !(text instanceof CDATASection)) {
+                            text.appendData(reader.getText());
+                        } else {
+                            parent.appendChild(document.createTextNode(reader.getText()));
+                        }
+                    }
+                    case XMLStreamConstants.CDATA -> parent.appendChild(document.createCDATASection(reader.getText()));
+                    case XMLStreamConstants.COMMENT -> parent.appendChild(document.createComment(reader.getText()));
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION ->
+                            parent.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                    case XMLStreamConstants.END_DOCUMENT -> throw new XmlSortingException("Unexpected end of the XML content");
+                    default -> log.debug("Skipping XML event of type {}", event);
+                }
+            }
+            return element;
+        }
+
+        private Element createElement(Document document) {
+            Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()),
+                    qualifiedName(reader.getPrefix(), reader.getLocalName()));
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                String prefix = reader.getNamespacePrefix(i);
+                String name = prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, reader.getNamespaceURI(i));
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+                        qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                        reader.getAttributeValue(i));
+            }
+            return element;
+        }
+
+        private void writeElement(Element element, String indent) throws XMLStreamException {
+            String prefix = nullToEmpty(element.getPrefix());
+            String localName = element.getLocalName() == null ? element.getNodeName() : element.getLocalName();
+            String namespaceUri = nullToEmpty(element.getNamespaceURI());
+            if (element.hasChildNodes()) {
+                writer.writeStartElement(prefix, localName, namespaceUri);
+            } else {
+                writer.writeEmptyElement(prefix, localName, namespaceUri);
+            }
+            writeAttributes(element);
+            if (!element.hasChildNodes()) {
+                return;
+            }
+
+            // Keep text-only content on the same line, like the Transformer used for whole documents does
+            boolean textOnly = true;
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                textOnly &= child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE;
+            }
+            boolean lineBreaks = indented && !textOnly;
+            String childIndent = indent + INDENT;
+            for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (lineBreaks) {
+                    writer.writeCharacters("\n" + childIndent);
+                }
+                switch (child.getNodeType()) {
+                    case Node.ELEMENT_NODE -> writeElement((Element) child, childIndent);
+                    case Node.TEXT_NODE -> writer.writeCharacters(child.getNodeValue());
+                    case Node.CDATA_SECTION_NODE -> writer.writeCData(child.getNodeValue());
+                    case Node.COMMENT_NODE -> writer.writeComment(child.getNodeValue());
+                    case Node.PROCESSING_INSTRUCTION_NODE -> writer.writeProcessingInstruction(
+                            ((ProcessingInstruction) child).getTarget(), ((ProcessingInstruction) child).getData());
+                    default -> log.debug("Skipping node of type {}", child.getNodeType());
+                }
+            }
+            if (lineBreaks) {
+                writer.writeCharacters("\n" + indent);
+            }
+            writer.writeEndElement();
+        }
+
+        private void writeAttributes(Element element) throws XMLStreamException {
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attr = (Attr) attributes.item(i);
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                    if (XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getName())) {
+                        writer.writeDefaultNamespace(attr.getValue());
+                    } else {
+                        writer.writeNamespace(attr.getLocalName(), attr.getValue());
+                    }
+                } else if (attr.getNamespaceURI() != null) {
+                    writer.writeAttribute(nullToEmpty(attr.getPrefix()), attr.getNamespaceURI(), attr.getLocalName(), attr.getValue());
+                } else {
+                    writer.writeAttribute(attr.getName(), attr.getValue());
+                }
+            }
+        }
+
+        private void writeCharacters(String text) throws XMLStreamException {
+            if (path.isEmpty()) {
+                // Whitespace outside the root element is replaced by the line breaks added around comments
+                return;
+            }
+            writer.writeCharacters(text);
+            int lineBreak = text.lastIndexOf('\n');
+            if (lineBreak > -1) {
+                String trailing = text.substring(lineBreak + 1);
+                currentIndent = trailing.isBlank() ? trailing : "";
+            } else if (!text.isBlank()) {
+                currentIndent = "";
+            }
+        }
+
+        private void writeLineBreakOutsideRoot() throws XMLStreamException {
+            if (indented && path.isEmpty()) {
+                writer.writeCharacters("\n");
+            }
+        }
+    }
+
+    /**
+     * A start tag, along with its namespace declarations and attributes, as read from the parser.
+     */
+    private record StartTag(String prefix, String localName, String namespaceUri,
+                            List<String[]> namespaces, List<String[]> attributes) {
+
+        private static StartTag read(XMLStreamReader reader) {
+            List<String[]> namespaces = new ArrayList<>(reader.getNamespaceCount());
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                namespaces.add(new String[]{nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i))});
+            }
+            List<String[]> attributes = new ArrayList<>(reader.getAttributeCount());
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.add(new String[]{nullToEmpty(reader.getAttributePrefix(i)), nullToEmpty(reader.getAttributeNamespace(i)),
+                        reader.getAttributeLocalName(i), reader.getAttributeValue(i)});
+            }
+            return new StartTag(nullToEmpty(reader.getPrefix()), reader.getLocalName(), nullToEmpty(reader.getNamespaceURI()),
+                    namespaces, attributes);
+        }
+
+        private void write(XMLStreamWriter writer, boolean empty) throws XMLStreamException {
+            if (empty) {
+                writer.writeEmptyElement(prefix, localName, namespaceUri);
+            } else {
+                writer.writeStartElement(prefix, localName, namespaceUri);
+            }
+            for (String[] namespace : namespaces) {
+                if (namespace[0].isEmpty()) {
+                    writer.writeDefaultNamespace(namespace[1]);
+                } else {
+                    writer.writeNamespace(namespace[0], namespace[1]);
+                }
+            }
+            for (String[] attribute : attributes) {
+                if (attribute[1].isEmpty()) {
+                    writer.writeAttribute(attribute[2], attribute[3]);
+                } else {
+                    writer.writeAttribute(attribute[0], attribute[1], attribute[2], attribute[3]);
+                }
+            }
+        }
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,121 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides which elements of a document are sorted, based on include and exclude element paths.
+ * <p>
+ * A path is absolute and lists the qualified element names from the root element down, separated by slashes, like
+ * {@code /config/beans}. A {@code *} step matches any single element name, like {@code /config/*} which matches every
+ * child element of the root {@code config} element.
+ * </p>
+ * <p>
+ * An element is sorted when it, or one of its ancestors, matches an include path, and neither it nor any of its
+ * ancestors matches an exclude path. Without any include paths, the root element is considered included, so the
+ * whole document is sorted apart from the excluded subtrees.
+ * </p>
+ */
+public class PathSelector {
+
+    private static final String ANY_STEP = "*";
+
+    private final List<String[]> includePaths;
+    private final List<String[]> excludePaths;
+
+    /**
+     * Creates a selector from the include and exclude paths of the given options.
+     *
+     * @param options the options holding the include and exclude paths
+     * @throws IllegalArgumentException if one of the paths is not absolute
+     */
+    public PathSelector(SortOptions options) {
+        this(options.getIncludePaths(), options.getExcludePaths());
+    }
+
+    /**
+     * Creates a selector from the given include and exclude paths.
+     *
+     * @param includePaths the paths of the subtrees to sort; all subtrees are sorted if empty
+     * @param excludePaths the paths of the subtrees that should never be sorted
+     * @throws IllegalArgumentException if one of the paths is not absolute
+     */
+    public PathSelector(Collection<String> includePaths, Collection<String> excludePaths) {
+        this.includePaths = parsePaths(includePaths);
+        this.excludePaths = parsePaths(excludePaths);
+    }
+
+    /**
+     * @return {@code true} if every element is sorted, so element paths do not need to be tracked at all
+     */
+    public boolean isSelectingAll() {
+        return includePaths.isEmpty() && excludePaths.isEmpty();
+    }
+
+    /**
+     * @return {@code true} if only the subtrees matching the include paths are sorted
+     */
+    public boolean hasIncludePaths() {
+        return !includePaths.isEmpty();
+    }
+
+    /**
+     * Checks whether the element at the given path matches an include path.
+     *
+     * @param path the qualified names of the element and its ancestors, starting from the root element
+     * @return {@code true} if the element, along with its whole subtree, should be sorted
+     */
+    public boolean isIncluded(List<String> path) {
+        if (includePaths.isEmpty()) {
+            return path.size() == 1;
+        }
+        return matchesAny(includePaths, path);
+    }
+
+    /**
+     * Checks whether the element at the given path matches an exclude path.
+     *
+     * @param path the qualified names of the element and its ancestors, starting from the root element
+     * @return {@code true} if the element, along with its whole subtree, should be left unsorted
+     */
+    public boolean isExcluded(List<String> path) {
+        return matchesAny(excludePaths, path);
+    }
+
+    private static boolean matchesAny(List<String[]> patterns, List<String> path) {
+        for (String[] pattern : patterns) {
+            if (matches(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String[] pattern, List<String> path) {
+        if (pattern.length != path.size()) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (!ANY_STEP.equals(pattern[i]) && !pattern[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String[]> parsePaths(Collection<String> paths) {
+        List<String[]> parsedPaths = new ArrayList<>();
+        if (paths == null) {
+            return parsedPaths;
+        }
+        for (String path : paths) {
+            String trimmedPath = path.trim();
+            if (!trimmedPath.startsWith("/") || trimmedPath.length() < 2) {
+                throw new IllegalArgumentException("Element path must be absolute, like /root/child: " + path);
+            }
+            parsedPaths.add(trimmedPath.substring(1).split("/"));
+        }
+        return parsedPaths;
+    }
+}
@@ -0,0 +1,49 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * An {@link XmlSorterImpl} keeping a {@code DocumentBuilder} and a {@code TransformerFactory} per thread, instead of
+ * looking up and configuring new ones for every document.
+ * <p>
+ * Setting them up takes about as long as parsing and serializing a document of a few kilobytes, so it is the main
+ * cost of sorting small documents, while it does not matter for larger ones. Documents are always sorted
+ * sequentially.
+ * </p>
+ */
+class PooledXmlSorter extends XmlSorterImpl {
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<>();
+    private static final ThreadLocal<TransformerFactory> transformerFactory =
+            ThreadLocal.withInitial(TransformerFactory::newInstance);
+
+    PooledXmlSorter() {
+        super(1);
+    }
+
+    @Override
+    public Document parseXmlContent(String xmlContent) throws Exception {
+        DocumentBuilder builder = documentBuilder.get();
+        if (builder == null) {
+            builder = XmlSorter.newDocumentBuilder();
+            documentBuilder.set(builder);
+        } else {
+            builder.reset();
+        }
+        try (InputStream inputStream = new ByteArrayInputStream(xmlContent.getBytes())) {
+            return builder.parse(inputStream);
+        }
+    }
+
+    @Override
+    protected Transformer newTransformer() throws TransformerException {
+        return transformerFactory.get().newTransformer();
+    }
+}
@@ -0,0 +1,199 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.codec.xml.XmlEventDecoder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.xml.stream.events.XMLEvent;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorts XML content that arrives as a stream of buffers, without blocking any thread while waiting for input.
+ * <p>
+ * The buffers are fed, as they arrive, to a non-blocking XML parser (Aalto, through Spring's
+ * {@link XmlEventDecoder}), whose events are added to a DOM {@code Document} right away. Once the input is complete,
+ * the document is sorted by the {@link XmlSorter} on the parallel scheduler, so that CPU-heavy sorting never runs on
+ * an event-loop thread. The sorted content can then be emitted as a stream of buffers on demand.
+ * </p>
+ */
+@Log4j2
+@Service
+public class ReactiveXmlSorter {
+
+    private final XmlSorter xmlSorter;
+    private final XmlEventDecoder xmlEventDecoder;
+    private final long maxInMemorySize;
+
+    /**
+     * Creates a sorter of XML content of up to the given size.
+     *
+     * @param xmlSorter       the sorter of the parsed documents
+     * @param maxInMemorySize the maximum size of the content, which is all held in memory once parsed
+     */
+    @Autowired
+    public ReactiveXmlSorter(XmlSorter xmlSorter,
+                             @Value("${sorter.reactive.max-in-memory-size:10MB}") DataSize maxInMemorySize) {
+        this.xmlSorter = xmlSorter;
+        this.maxInMemorySize = maxInMemorySize.toBytes();
+        this.xmlEventDecoder = new XmlEventDecoder();
+        // Only caps the bytes buffered by the parser for a single element, the whole content is capped as it arrives
+        this.xmlEventDecoder.setMaxInMemorySize((int) Math.min(this.maxInMemorySize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Sorts the XML content of the given buffers.
+     * <p>
+     * Cancelling the returned {@code Mono}, e.g. when the client goes away, cancels the
+     * {@link SortOptions#getDeadline() deadline} of the options, so that sorting stops rather than running to
+     * completion for nobody.
+     * </p>
+     * <p>
+     * Content larger than {@code sorter.reactive.max-in-memory-size} fails with a {@link DataBufferLimitException} as
+     * soon as the limit is passed, rather than once it has all been parsed.
+     * </p>
+     *
+     * @param content the XML content, as a stream of buffers
+     * @param options the options tuning how the content is sorted
+     * @return the sorted XML content, once the whole input has been received and sorted
+     */
+    public Mono<SortedXml> sort(Flux<DataBuffer> content, SortOptions options) {
+        return Mono.fromCallable(XmlEventDocumentBuilder::new)
+                .flatMap(builder -> {
+                    XmlDeclarationReader declarationReader = new XmlDeclarationReader();
+                    return xmlEventDecoder.decode(limited(content).doOnNext(declarationReader::read),
+                                    ResolvableType.forClass(XMLEvent.class), null, null)
+                            .<Void>handle((event, sink) -> {
+                                try {
+                                    builder.add(event);
+                                } catch (XmlSortingException e) {
+                                    sink.error(e);
+                                }
+                            })
+                            .then(Mono.fromCallable(() -> sort(builder, declarationReader, options))
+                                    .subscribeOn(Schedulers.parallel()));
+                })
+                .doOnCancel(options.getDeadline()::cancel);
+    }
+
+    /**
+     * Fails the given content with a {@link DataBufferLimitException} once it has more bytes than the maximum size,
+     * releasing the buffer that passed the limit.
+     */
+    private Flux<DataBuffer> limited(Flux<DataBuffer> content) {
+        AtomicLong received = new AtomicLong();
+        return content.handle((buffer, sink) -> {
+            if (received.addAndGet(buffer.readableByteCount()) > maxInMemorySize) {
+                DataBufferUtils.release(buffer);
+                sink.error(new DataBufferLimitException(
+                        "The XML content exceeds the maximum size of " + maxInMemorySize + " bytes"));
+            } else {
+                sink.next(buffer);
+            }
+        });
+    }
+
+    private SortedXml sort(XmlEventDocumentBuilder builder, XmlDeclarationReader declarationReader,
+                           SortOptions options) throws XmlSortingException {
+        String sortedXml = xmlSorter.sort(builder.getDocument(), options);
+        // Like the String based sorting, the XML declaration is preserved as it was written, unless canonical
+        if (declarationReader.getDeclaration() != null && options.getOutputFormat() != OutputFormat.CANONICAL) {
+            log.debug("XML declaration is preserved: [{}]", declarationReader.getDeclaration());
+            String separator = options.getOutputFormat() == OutputFormat.INDENTED ? "\n" : "";
+            sortedXml = declarationReader.getDeclaration() + separator + sortedXml;
+        }
+        Charset charset = StandardCharsets.UTF_8;
+        if (builder.getEncoding() != null && Charset.isSupported(builder.getEncoding())) {
+            charset = Charset.forName(builder.getEncoding());
+        }
+        log.debug("Sorted XML content of {} characters in {}", sortedXml.length(), charset);
+        return new SortedXml(sortedXml.getBytes(charset), charset);
+    }
+
+    /**
+     * Reads the XML declaration, if any, from the first bytes of the content, as they go by on their way to the parser.
+     * The declaration is only recognized in an ASCII compatible encoding, and may span several buffers.
+     */
+    private static class XmlDeclarationReader {
+
+        private static final String DECLARATION_START = "<?xml";
+        private static final String DECLARATION_END = "?>";
+        private static final int MAX_DECLARATION_LENGTH = 256;
+
+        private final StringBuilder prolog = new StringBuilder();
+        private boolean done;
+        private String declaration;
+
+        void read(DataBuffer buffer) {
+            for (int i = buffer.readPosition(); !done && i < buffer.writePosition(); i++) {
+                char c = (char) (buffer.getByte(i) & 0xFF);
+                if (prolog.isEmpty() && (Character.isWhitespace(c) || c == 0xEF || c == 0xBB || c == 0xBF)) {
+                    // Skip leading whitespace and a UTF-8 byte order mark
+                    continue;
+                }
+                prolog.append(c);
+                check();
+            }
+        }
+
+        private void check() {
+            int length = prolog.length();
+            if (length <= DECLARATION_START.length()) {
+                done = !DECLARATION_START.startsWith(prolog.toString());
+            } else if (length == DECLARATION_START.length() + 1) {
+                // Processing instructions like <?xml-stylesheet ...?> are not a declaration
+                done = !Character.isWhitespace(prolog.charAt(length - 1));
+            } else if (prolog.indexOf(DECLARATION_END, length - DECLARATION_END.length()) >= 0) {
+                declaration = prolog.toString();
+                done = true;
+            } else {
+                done = length >= MAX_DECLARATION_LENGTH;
+            }
+        }
+
+        String getDeclaration() {
+            return declaration;
+        }
+    }
+
+    /**
+     * Sorted XML content, encoded in the charset declared by the input, or UTF-8 if none was declared.
+     *
+     * @param content the encoded sorted XML content
+     * @param charset the charset of the content
+     */
+    public record SortedXml(byte[] content, Charset charset) {
+
+        /**
+         * Splits the content into buffers of at most the given size. The buffers wrap the content without copying it
+         * and are only created as they are requested, so that a slow consumer applies backpressure.
+         *
+         * @param bufferFactory the factory wrapping the content into buffers
+         * @param bufferSize    the maximum number of bytes per buffer
+         * @return the content as a stream of buffers
+         */
+        public Flux<DataBuffer> toDataBuffers(DataBufferFactory bufferFactory, int bufferSize) {
+            int bufferCount = (content.length + bufferSize - 1) / bufferSize;
+            return Flux.range(0, bufferCount)
+                    .map(index -> {
+                        int offset = index * bufferSize;
+                        int length = Math.min(bufferSize, content.length - offset);
+                        return bufferFactory.wrap(ByteBuffer.wrap(content, offset, length).slice());
+                    });
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Sorts long lists of sibling elements, like the records of a flat record-oriented document, by splitting them into
+ * shards that are sorted in parallel and then merged.
+ * <p>
+ * The shards are contiguous ranges of the list, each sorted by a comparator of its own, since comparators cache the
+ * hashes and values of the nodes they compare and are not thread-safe. The sorted shards are then k-way merged, ties
+ * going to the earlier shard, so the result is exactly the one of a stable sort of the whole list. Shards only read
+ * the subtrees of their own elements, so they never touch the same nodes, and the subtree hashes and typed values
+ * they compute are handed over to the merging comparator rather than computed again.
+ * </p>
+ * <p>
+ * Shards are sorted on a pool shared by all sort operations, with one thread per available processor. The deadline
+ * of the sort operation is checked by every shard and by the merge, so that none of them outlives it.
+ * </p>
+ */
+@Log4j2
+public final class ShardedSort {
+
+    private static final AtomicInteger WORKER_NUMBER = new AtomicInteger(1);
+    // The workers are daemon threads, named to be easy to spot in thread dumps
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+        ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        worker.setName("xml-record-sorter-" + WORKER_NUMBER.getAndIncrement());
+        worker.setDaemon(true);
+        return worker;
+    }, null, false);
+
+    private ShardedSort() {
+    }
+
+    /**
+     * Sorts the given list in place, in as many shards as the parallelism allows while keeping at least
+     * {@code minShardSize} elements in every shard. Lists too short to fill two shards are sorted sequentially.
+     *
+     * @param elements          the elements to sort
+     * @param parallelism       the maximum number of shards
+     * @param minShardSize      the minimum number of elements of a shard
+     * @param shardComparators  creates the comparator of each shard
+     * @param mergeComparator   the comparator used to merge the sorted shards
+     * @param deadline          the deadline of the sort operation
+     * @throws java.util.concurrent.CancellationException if the deadline is over before the list is sorted
+     */
+    public static void sort(List<Node> elements, int parallelism, int minShardSize,
+                            Supplier<NodeComparator> shardComparators, NodeComparator mergeComparator,
+                            SortDeadline deadline) {
+        int shardCount = Math.min(parallelism, elements.size() / Math.max(minShardSize, 1));
+        if (shardCount < 2) {
+            elements.sort(deadline.checking(mergeComparator));
+            return;
+        }
+
+        List<Future<SortedShard>> futures = new ArrayList<>(shardCount);
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<Node> range = new ArrayList<>(elements.subList(
+                    (int) ((long) elements.size() * shard / shardCount),
+                    (int) ((long) elements.size() * (shard + 1) / shardCount)));
+            futures.add(POOL.submit(() -> {
+                NodeComparator comparator = shardComparators.get();
+                range.sort(deadline.checking(comparator));
+                return new SortedShard(range, comparator);
+            }));
+        }
+
+        List<List<Node>> shards = new ArrayList<>(shardCount);
+        try {
+            for (Future<SortedShard> future : futures) {
+                SortedShard shard = future.get();
+                mergeComparator.absorb(shard.comparator());
+                shards.add(shard.elements());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while sorting shards of sibling elements");
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e.getCause() instanceof RuntimeException runtimeException
+                    ? runtimeException
+                    : new IllegalStateException(e.getCause());
+        }
+
+        merge(shards, deadline.checking(mergeComparator), elements);
+        log.debug("Sorted {} sibling elements in {} shards", elements.size(), shardCount);
+    }
+
+    /**
+     * Merges the sorted shards into the given list, replacing its content.
+     */
+    private static void merge(List<List<Node>> shards, Comparator<Node> comparator, List<Node> result) {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(shards.size(), (cursor1, cursor2) -> {
+            int comparison = comparator.compare(cursor1.head(), cursor2.head());
+            return comparison != 0 ? comparison : Integer.compare(cursor1.shard, cursor2.shard);
+        });
+        for (int shard = 0; shard < shards.size(); shard++) {
+            heads.add(new Cursor(shards.get(shard), shard));
+        }
+
+        int index = 0;
+        while (!heads.isEmpty()) {
+            Cursor cursor = heads.poll();
+            result.set(index++, cursor.head());
+            if (++cursor.position < cursor.elements.size()) {
+                heads.add(cursor);
+            }
+        }
+    }
+
+    private record SortedShard(List<Node> elements, NodeComparator comparator) {
+    }
+
+    /**
+     * The position of the merge in a sorted shard.
+     */
+    private static class Cursor {
+
+        private final List<Node> elements;
+        private final int shard;
+        private int position;
+
+        private Cursor(List<Node> elements, int shard) {
+            this.elements = elements;
+            this.shard = shard;
+        }
+
+        private Node head() {
+            return elements.get(position);
+        }
+    }
+}
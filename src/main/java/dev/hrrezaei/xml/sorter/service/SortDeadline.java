@@ -0,0 +1,196 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The time budget of a sort operation, along with a way to abandon it, e.g. once its client has gone away.
+ * <p>
+ * Sorting checks its deadline cooperatively: between elements, while comparing siblings and while writing the
+ * output. Once the deadline has passed or the operation has been cancelled, the next check throws a
+ * {@link CancellationException}, so that the abandoned work stops promptly and its memory can be reclaimed. Reading
+ * the clock on every element or comparison would be noticeable, so the frequent checks go through a
+ * {@link Checkpoint}, which only looks at the deadline every {@value #CHECK_INTERVAL} calls.
+ * </p>
+ * <p>
+ * A deadline is thread-safe: it can be cancelled from any thread, while the threads of the sort operation check it.
+ * </p>
+ */
+public final class SortDeadline {
+
+    /**
+     * No deadline at all, which cannot be cancelled either, for the operations nobody is waiting on.
+     */
+    public static final SortDeadline NONE = new SortDeadline(null);
+
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final Duration timeout;
+    private final long expiresAt;
+    private volatile boolean cancelled;
+
+    private SortDeadline(Duration timeout) {
+        this.timeout = timeout;
+        this.expiresAt = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+    }
+
+    /**
+     * Starts a deadline that expires once the given time has elapsed.
+     *
+     * @param timeout the time budget of the sort operation, from now on
+     * @return the new deadline
+     */
+    public static SortDeadline after(Duration timeout) {
+        return new SortDeadline(timeout);
+    }
+
+    /**
+     * Creates a deadline that never expires, but can still be cancelled.
+     *
+     * @return the new deadline
+     */
+    public static SortDeadline unbounded() {
+        return new SortDeadline(null);
+    }
+
+    /**
+     * @return the time budget of the sort operation, or {@code null} if it has none
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Cancels the sort operation, which stops at its next check. Cancelling {@link #NONE} has no effect.
+     */
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @return whether the sort operation has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return whether the time budget of the sort operation has elapsed
+     */
+    public boolean isExpired() {
+        return timeout != null && System.nanoTime() - expiresAt >= 0;
+    }
+
+    /**
+     * @return whether the sort operation should stop, either cancelled or expired
+     */
+    public boolean isOver() {
+        return cancelled || isExpired();
+    }
+
+    /**
+     * Stops the sort operation if it should.
+     *
+     * @throws CancellationException if the sort operation has been cancelled or its time budget has elapsed
+     */
+    public void check() {
+        if (isOver()) {
+            throw new CancellationException(reason());
+        }
+    }
+
+    /**
+     * @return why the sort operation stopped
+     */
+    String reason() {
+        return cancelled ? "The sort operation was cancelled"
+                : "The sort operation exceeded its deadline of " + timeout.toMillis() + " ms";
+    }
+
+    /**
+     * @return a new checkpoint for the frequent checks of a single thread
+     */
+    public Checkpoint checkpoint() {
+        return new Checkpoint();
+    }
+
+    /**
+     * Wraps the given comparator so that sorting with it checks the deadline.
+     *
+     * @param comparator the comparator to wrap, used by a single thread
+     * @return the checking comparator, or the given one when there is no deadline
+     */
+    public <T> Comparator<T> checking(Comparator<T> comparator) {
+        if (this == NONE) {
+            return comparator;
+        }
+        Checkpoint checkpoint = checkpoint();
+        return (o1, o2) -> {
+            checkpoint.check();
+            return comparator.compare(o1, o2);
+        };
+    }
+
+    /**
+     * Wraps the given writer so that writing to it checks the deadline, e.g. while a {@code Transformer} serializes a
+     * document into it.
+     *
+     * @param writer the writer to wrap, used by a single thread
+     * @return the checking writer, or the given one when there is no deadline
+     */
+    public Writer checking(Writer writer) {
+        if (this == NONE) {
+            return writer;
+        }
+        Checkpoint checkpoint = checkpoint();
+        return new FilterWriter(writer) {
+            @Override
+            public void write(int c) throws IOException {
+                checkpoint.check();
+                super.write(c);
+            }
+
+            @Override
+            public void write(char[] buffer, int offset, int length) throws IOException {
+                checkpoint.check();
+                super.write(buffer, offset, length);
+            }
+
+            @Override
+            public void write(String string, int offset, int length) throws IOException {
+                checkpoint.check();
+                super.write(string, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Checks the deadline every {@value #CHECK_INTERVAL} calls only, for the checks made on every element or
+     * comparison. A checkpoint counts the calls of a single thread and is not thread-safe.
+     */
+    public final class Checkpoint {
+
+        private int calls;
+
+        private Checkpoint() {
+        }
+
+        /**
+         * Counts a call, and stops the sort operation if it should on every {@value #CHECK_INTERVAL}th one.
+         *
+         * @throws CancellationException if the sort operation has been cancelled or its time budget has elapsed
+         */
+        public void check() {
+            if (++calls == CHECK_INTERVAL) {
+                calls = 0;
+                SortDeadline.this.check();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import java.util.function.BiPredicate;
+
+/**
+ * A sorting engine of the {@link AdaptiveXmlSorter}: an {@link XmlSorter} suited to the documents of some shape.
+ * <p>
+ * Engines declared as beans are consulted before the built-in ones, in their
+ * {@link org.springframework.core.annotation.Order order}, and the first engine suited to a document sorts it. An
+ * engine must produce the same output as the {@link XmlSorterImpl}, only faster for the documents it suits.
+ * </p>
+ */
+public interface SortEngine {
+
+    /**
+     * @return the name of the engine, tagging the metrics of the sort operations it performs
+     */
+    String getName();
+
+    /**
+     * @return the sorter of the engine
+     */
+    XmlSorter getSorter();
+
+    /**
+     * Tells whether the engine suits a document of the given shape, to be sorted with the given options.
+     *
+     * @param shape   the shape of the document
+     * @param options the options the document is sorted with
+     * @return {@code true} if the engine should sort the document
+     */
+    boolean suits(DocumentShape shape, SortOptions options);
+
+    /**
+     * Creates an engine sorting the documents matching the given condition with the given sorter.
+     *
+     * @param name   the name of the engine
+     * @param sorter the sorter of the engine
+     * @param suits  the condition on the shape of the documents and on their options
+     * @return the engine
+     */
+    static SortEngine of(String name, XmlSorter sorter, BiPredicate<DocumentShape, SortOptions> suits) {
+        return new SortEngine() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public XmlSorter getSorter() {
+                return sorter;
+            }
+
+            @Override
+            public boolean suits(DocumentShape shape, SortOptions options) {
+                return suits.test(shape, options);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+}
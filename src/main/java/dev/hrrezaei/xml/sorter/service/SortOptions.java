@@ -0,0 +1,108 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Singular;
+import lombok.ToString;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable set of options that tune how a single sort request is performed.
+ * <p>
+ * All options default to the original behavior of the sorter, so {@link #DEFAULT} produces exactly the same output
+ * as calling the option-less {@link XmlSorter} methods.
+ * </p>
+ */
+@Value
+@Builder(toBuilder = true)
+public class SortOptions {
+
+    /**
+     * The default options, matching the behavior of the option-less {@link XmlSorter} methods.
+     */
+    public static final SortOptions DEFAULT = SortOptions.builder().build();
+
+    /**
+     * When {@code true}, the input {@code Document} is left untouched: the sorted result is written into a fresh
+     * {@code Document} in sorted order instead of removing and re-adding every attribute and child of the input.
+     * This allows a parsed {@code Document} to be cached and sorted concurrently by several threads.
+     */
+    boolean preserveInput;
+
+    /**
+     * When {@code true}, sibling elements that are exact duplicates of each other (including the non-element nodes
+     * preceding them) are collapsed into a single element, which records the number of collapsed copies in the
+     * {@link #getDuplicateCountAttribute() duplicate count attribute}.
+     */
+    boolean collapseDuplicates;
+
+    /**
+     * The name of the attribute holding the number of copies of a collapsed element. Only used when
+     * {@link #isCollapseDuplicates()} is set.
+     */
+    @Builder.Default
+    String duplicateCountAttribute = "duplicate-count";
+
+    /**
+     * The absolute paths, like {@code /config/beans}, of the only subtrees to sort. Everything outside these subtrees
+     * keeps its original order and, when sorting from a {@code String} or an {@code InputStream}, is streamed through
+     * without being parsed into a DOM. All subtrees are sorted if empty. See {@link PathSelector} for the path syntax.
+     * <p>
+     * When sorting a {@code Document}, the unselected regions are re-indented and, depending on the DOM
+     * implementation, may still have their attributes serialized in name order.
+     * </p>
+     */
+    @Singular
+    List<String> includePaths;
+
+    /**
+     * The absolute paths of the subtrees that should keep their original order, even inside an included subtree.
+     */
+    @Singular
+    List<String> excludePaths;
+
+    /**
+     * The layout of the sorted XML content, {@link OutputFormat#INDENTED} by default.
+     */
+    @Builder.Default
+    OutputFormat outputFormat = OutputFormat.INDENTED;
+
+    /**
+     * The types of attribute values and text contents that are compared by their typed value when ordering sibling
+     * elements, like {@link ValueType#INTEGER} for {@code 9} to sort before {@code 10}. Values are parsed once per
+     * sort operation, as the first of these types they match, and all values are compared as strings if empty.
+     * See {@link TypedValue} for how values of different types are ordered.
+     */
+    @Singular
+    Set<ValueType> valueTypes;
+
+    /**
+     * The maximum number of shards the child elements of an element are split into, to be sorted in parallel and
+     * merged, like the records of a flat record-oriented document. Only elements with enough children to fill at
+     * least two shards of {@link #getMinShardSize() minShardSize} elements are sorted in parallel, and the output is
+     * the same as when sorted sequentially. {@code 0} by default, for the parallelism configured for the sorter, and
+     * {@code 1} for a sequential sort. See {@link ShardedSort}.
+     */
+    int parallelism;
+
+    /**
+     * The minimum number of child elements of every shard, when sorting in parallel, so that sorting a shard is worth
+     * handing it to another thread.
+     */
+    @Builder.Default
+    int minShardSize = 4096;
+
+    /**
+     * The deadline of the sort operation, which stops with a
+     * {@link dev.hrrezaei.xml.sorter.exception.SortCancelledException} once it has passed or has been cancelled.
+     * {@link SortDeadline#NONE} by default. It bounds a single operation rather than tuning its output, so it is left
+     * out of {@code equals} and {@code toString}, and options differing only by their deadline sort the same way.
+     */
+    @Builder.Default
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    SortDeadline deadline = SortDeadline.NONE;
+}
@@ -0,0 +1,261 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Disk-backed cache of sorted XML, keyed by a hash of the input along with the sort options, so that documents sorted
+ * before are served without being parsed again, even after a restart.
+ * <p>
+ * Every entry is a file of the cache directory, holding the sorted XML in UTF-8, so that it can be sent as is. The
+ * total size of the entries is capped, and the least recently used entries are evicted to make room for new ones.
+ * The order of use is kept in the last modified time of the files, so it survives restarts too.
+ * </p>
+ * <p>
+ * Entries are written to a temporary file, forced to the disk and then atomically moved in place, so a crash never
+ * leaves a partial entry behind, only temporary files which are deleted on the next start.
+ * </p>
+ * <p>
+ * The files returned by {@link #get(String)} are opened by the server only once the response is sent, so the files
+ * of evicted entries are deleted {@code sorter.cache.eviction-delay} later, rather than right away, for the responses
+ * being sent to still find them. Once opened, a file can be read to the end even if deleted, on POSIX systems.
+ * </p>
+ * <p>
+ * The cache is only created when {@code sorter.cache.enabled} is {@code true}, and is tuned with the
+ * {@code sorter.cache.*} properties. This class is thread-safe.
+ * </p>
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(prefix = "sorter.cache", name = "enabled", havingValue = "true")
+public class SortedResultCache {
+
+    private static final String ENTRY_SUFFIX = ".xml";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxSize;
+    /**
+     * The sizes of the entries, by key, in access order, from the least recently used.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private final Duration evictionDelay;
+    /**
+     * The times at which the files of the evicted entries may be deleted, by key, in eviction order.
+     */
+    private final LinkedHashMap<String, Long> evicted = new LinkedHashMap<>();
+
+    public SortedResultCache(Path directory, DataSize maxSize) throws IOException {
+        this(directory, maxSize, Duration.ofMinutes(1));
+    }
+
+    /**
+     * Creates a cache in the given directory, holding the entries left there by previous runs.
+     *
+     * @param directory     the directory of the cached entries
+     * @param maxSize       the maximum total size of the entries
+     * @param evictionDelay how long the files of evicted entries are kept, for the responses still sending them
+     * @throws IOException if the directory cannot be created or read
+     */
+    @Autowired
+    public SortedResultCache(@Value("${sorter.cache.directory}") Path directory,
+                             @Value("${sorter.cache.max-size:1GB}") DataSize maxSize,
+                             @Value("${sorter.cache.eviction-delay:PT1M}") Duration evictionDelay) throws IOException {
+        this.directory = Files.createDirectories(directory).toAbsolutePath().normalize();
+        this.maxSize = maxSize.toBytes();
+        this.evictionDelay = evictionDelay;
+        load();
+    }
+
+    /**
+     * Computes the key of the sorted result of the given input with the given options.
+     * <p>
+     * The key includes the {@link XmlSorter#OUTPUT_VERSION output version}, so that the entries cached before an
+     * upgrade changing the sorted output are never served, and are evicted in time.
+     * </p>
+     *
+     * @param input   the raw XML content to sort
+     * @param options the options tuning how the content is sorted
+     * @return the SHA-256 hash of the output version, the options and the input, in hexadecimal
+     */
+    public static String key(byte[] input, SortOptions options) {
+        byte[] versionedOptions = ("v" + XmlSorter.OUTPUT_VERSION + " " + options).getBytes(StandardCharsets.UTF_8);
+        // Separates the options from the input, which could otherwise start with the end of the options
+        return ContentHashIndex.hash(versionedOptions, new byte[]{0}, input);
+    }
+
+    /**
+     * Looks up the sorted result of the given key, marking it as the most recently used.
+     * <p>
+     * The file is kept for at least {@code sorter.cache.eviction-delay}, even if the entry is evicted in the meantime,
+     * so it should be opened within that time.
+     * </p>
+     *
+     * @param key the key of the sorted result
+     * @return the file holding the sorted XML in UTF-8, if cached
+     */
+    public Optional<Path> get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return Optional.empty();
+            }
+        }
+        Path file = entryFile(key);
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Deleted behind the back of the cache
+            forget(key);
+            return Optional.empty();
+        } catch (IOException e) {
+            log.debug("Error touching the cache entry {}", file, e);
+        }
+        return Optional.of(file);
+    }
+
+    /**
+     * Caches the sorted result of the given key, evicting the least recently used entries if the cache gets too large.
+     * Results larger than the cache itself are not cached.
+     *
+     * @param key       the key of the sorted result
+     * @param sortedXml the sorted XML
+     * @return the file holding the sorted XML in UTF-8, if cached
+     */
+    public Optional<Path> put(String key, String sortedXml) {
+        byte[] content = sortedXml.getBytes(StandardCharsets.UTF_8);
+        if (content.length > maxSize) {
+            return Optional.empty();
+        }
+        Path file = entryFile(key);
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(directory, key, TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Error caching the sorted XML {}: {}", key, e.getMessage());
+            deleteQuietly(tempFile);
+            return Optional.empty();
+        }
+
+        synchronized (this) {
+            // The file of the entry, if evicted before, now holds the new entry
+            evicted.remove(key);
+            Long previousSize = entries.put(key, (long) content.length);
+            size += content.length - (previousSize == null ? 0 : previousSize);
+            evict();
+        }
+        return Optional.of(file);
+    }
+
+    /**
+     * @return the total size of the cached entries, in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public synchronized int entryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits its maximum size, and deletes the files of the
+     * entries evicted long enough ago.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            evicted.put(eldest.getKey(), now + evictionDelay.toNanos());
+            log.debug("Evicted the sorted XML {} from the cache", eldest.getKey());
+        }
+
+        Iterator<Map.Entry<String, Long>> evictedIterator = evicted.entrySet().iterator();
+        while (evictedIterator.hasNext()) {
+            Map.Entry<String, Long> entry = evictedIterator.next();
+            if (entry.getValue() - now > 0) {
+                break;
+            }
+            evictedIterator.remove();
+            deleteQuietly(entryFile(entry.getKey()));
+        }
+    }
+
+    private synchronized void forget(String key) {
+        Long entrySize = entries.remove(key);
+        if (entrySize != null) {
+            size -= entrySize;
+        }
+    }
+
+    /**
+     * Loads the entries left by previous runs, in the order they were last used, and deletes the temporary files
+     * left by interrupted writes.
+     */
+    private synchronized void load() throws IOException {
+        record Entry(String key, long size, long lastUsed) {
+        }
+        List<Entry> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    deleteQuietly(file);
+                } else if (name.endsWith(ENTRY_SUFFIX) && Files.isRegularFile(file)) {
+                    found.add(new Entry(name.substring(0, name.length() - ENTRY_SUFFIX.length()),
+                            Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (Entry entry : found) {
+            entries.put(entry.key(), entry.size());
+            size += entry.size();
+        }
+        evict();
+        log.info("Loaded {} sorted XML entries of {} bytes from the cache {}", entries.size(), size, directory);
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Error deleting {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import jdk.jfr.*;
+import org.w3c.dom.Element;
+
+/**
+ * The JDK Flight Recorder events of the sorter, to correlate the work of the sort operations with garbage collection,
+ * allocation and the rest of the activity of the JVM in production recordings, without attaching a profiler.
+ * <p>
+ * The {@link XmlSorterImpl} reports the parse, sort and serialize phases of every sort operation going through a DOM,
+ * and the {@link NodeSorter} reports the sorts of sibling elements taking longer than
+ * {@value SlowSiblingSortEvent#DEFAULT_THRESHOLD} by default. The events are enabled by default, so they are
+ * recorded as soon as a recording is started, like with {@code -XX:StartFlightRecording}, and cost next to nothing
+ * otherwise. They are all in the {@value #CATEGORY} category, and do not record stack traces, as their fields locate
+ * them well enough.
+ * </p>
+ */
+public final class SorterEvents {
+
+    public static final String CATEGORY = "XML Sorter";
+
+    private SorterEvents() {
+    }
+
+    /**
+     * Counts the bytes of the given text once encoded in UTF-8, without encoding it.
+     */
+    static long utf8Length(CharSequence text) {
+        long length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // Surrogate pairs take 4 bytes for 2 chars, like other chars from 0x800 take 3 bytes for 1 char
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The parsing of XML content into a DOM {@code Document}.
+     */
+    @Name("dev.hrrezaei.xml.sorter.Parse")
+    @Label("XML Parse")
+    @Category(CATEGORY)
+    @Description("Parsing of XML content into a DOM Document")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+
+        @Label("Input Size")
+        @DataAmount
+        long inputSize;
+
+        /**
+         * Ends the event and commits it, if enabled and above its threshold.
+         *
+         * @param xmlContent the parsed XML content
+         */
+        void report(String xmlContent) {
+            end();
+            if (shouldCommit()) {
+                inputSize = utf8Length(xmlContent);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The sorting of a DOM {@code Document}, in place or into a sorted copy.
+     */
+    @Name("dev.hrrezaei.xml.sorter.Sort")
+    @Label("XML Sort")
+    @Category(CATEGORY)
+    @Description("Sorting of the attributes and elements of a DOM Document")
+    @StackTrace(false)
+    static class SortEvent extends Event {
+
+        @Label("Element Count")
+        @Description("Number of elements visited, collapsed duplicates excluded")
+        long elementCount;
+
+        @Label("Depth")
+        @Description("Depth of the element tree, the root element included")
+        int depth;
+
+        @Label("Largest Sibling Group")
+        @Description("Largest number of child elements of a single element")
+        int largestSiblingGroup;
+
+        @Label("Parallelism")
+        @Description("Maximum number of shards sorted in parallel")
+        int parallelism;
+
+        @Label("Preserve Input")
+        boolean preserveInput;
+
+        @Label("Collapse Duplicates")
+        boolean collapseDuplicates;
+
+        /**
+         * Ends the event and commits it, if enabled and above its threshold.
+         *
+         * @param nodeSorter the sorter that sorted the document
+         * @param options    the options the document was sorted with
+         */
+        void report(NodeSorter nodeSorter, SortOptions options) {
+            end();
+            if (shouldCommit()) {
+                elementCount = nodeSorter.getElementCount();
+                depth = nodeSorter.getMaxDepth();
+                largestSiblingGroup = nodeSorter.getLargestSiblingGroup();
+                parallelism = options.getParallelism();
+                preserveInput = options.isPreserveInput();
+                collapseDuplicates = options.isCollapseDuplicates();
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The serialization of a sorted DOM {@code Document}.
+     */
+    @Name("dev.hrrezaei.xml.sorter.Serialize")
+    @Label("XML Serialize")
+    @Category(CATEGORY)
+    @Description("Serialization of a sorted DOM Document")
+    @StackTrace(false)
+    static class SerializeEvent extends Event {
+
+        @Label("Output Format")
+        String outputFormat;
+
+        @Label("Output Size")
+        @DataAmount
+        long outputSize;
+
+        /**
+         * Ends the event and commits it, if enabled and above its threshold.
+         *
+         * @param sortedXml the serialized document
+         * @param format    the format it was serialized in
+         */
+        void report(String sortedXml, OutputFormat format) {
+            end();
+            if (shouldCommit()) {
+                outputFormat = format.name();
+                outputSize = utf8Length(sortedXml);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A sort of the child elements of an element that took a long time, like the records of a large flat document,
+     * or siblings that are costly to compare.
+     */
+    @Name("dev.hrrezaei.xml.sorter.SlowSiblingSort")
+    @Label("Slow Sibling Sort")
+    @Category(CATEGORY)
+    @Description("Sort of the child elements of an element that took longer than the threshold")
+    @StackTrace(false)
+    @Threshold(SlowSiblingSortEvent.DEFAULT_THRESHOLD)
+    static class SlowSiblingSortEvent extends Event {
+
+        static final String DEFAULT_THRESHOLD = "10 ms";
+
+        @Label("Element")
+        @Description("Qualified name of the element whose children were sorted")
+        String element;
+
+        @Label("Sibling Count")
+        int siblingCount;
+
+        @Label("Parallelism")
+        @Description("Maximum number of shards sorted in parallel")
+        int parallelism;
+
+        @Label("Typed Values")
+        @Description("Whether values were compared by their type")
+        boolean typedValues;
+
+        /**
+         * Ends the event and commits it, if enabled and above its threshold.
+         *
+         * @param parent   the element whose children were sorted
+         * @param siblings the number of children sorted
+         * @param options  the options they were sorted with
+         */
+        void report(Element parent, int siblings, SortOptions options) {
+            end();
+            if (shouldCommit()) {
+                element = parent.getNodeName();
+                siblingCount = siblings;
+                parallelism = options.getParallelism();
+                typedValues = !options.getValueTypes().isEmpty();
+                commit();
+            }
+        }
+    }
+}
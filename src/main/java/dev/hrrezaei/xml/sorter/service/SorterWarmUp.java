@@ -0,0 +1,130 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Warms up the sorter on startup, so that the first requests after a deploy do not pay for XML factory discovery,
+ * class loading and JIT compilation.
+ * <p>
+ * Representative documents are parsed, sorted and serialized in every output format, through both the DOM and the
+ * streaming path-selective sorting, for a number of iterations or until a time budget runs out. When the
+ * {@link AdaptiveXmlSorter} is enabled, the sorters of its engines are warmed up directly, so that the warm-up does
+ * not show in the metrics of the engines. The warm-up runs once
+ * all singletons are created, before the web servers start and before the application reports itself ready on the
+ * Actuator readiness probe, so no traffic is routed to a cold instance. It also runs during the training run that
+ * generates the AppCDS archive, so that the XML classes are part of the archive.
+ * </p>
+ * <p>
+ * It is tuned with the {@code sorter.warmup.*} properties, and a document that cannot be sorted is skipped, so that a
+ * failing warm-up never prevents the application from starting.
+ * </p>
+ */
+@Log4j2
+@Component
+public class SorterWarmUp implements SmartInitializingSingleton {
+
+    private static final List<SortOptions> VARIANTS = List.of(
+            SortOptions.DEFAULT,
+            SortOptions.builder().outputFormat(OutputFormat.COMPACT).collapseDuplicates(true)
+                    .valueTypes(EnumSet.allOf(ValueType.class)).build(),
+            SortOptions.builder().outputFormat(OutputFormat.CANONICAL).preserveInput(true).build(),
+            SortOptions.builder().includePath("/*").build());
+
+    private final List<XmlSorter> sorters;
+    private final boolean enabled;
+    private final String documentsPattern;
+    private final int iterations;
+    private final Duration maxDuration;
+    private int completedIterations;
+
+    @Autowired
+    public SorterWarmUp(XmlSorterImpl xmlSorter,
+                        Optional<AdaptiveXmlSorter> adaptiveXmlSorter,
+                        @Value("${sorter.warmup.enabled:true}") boolean enabled,
+                        @Value("${sorter.warmup.documents:classpath:warmup/*.xml}") String documentsPattern,
+                        @Value("${sorter.warmup.iterations:20}") int iterations,
+                        @Value("${sorter.warmup.max-duration:PT10S}") Duration maxDuration) {
+        List<XmlSorter> sorters = new ArrayList<>(List.of(xmlSorter));
+        adaptiveXmlSorter.ifPresent(adaptive -> adaptive.getEngines().stream()
+                .map(SortEngine::getSorter)
+                .filter(sorter -> sorter != xmlSorter)
+                .forEach(sorters::add));
+        this.sorters = List.copyOf(sorters);
+        this.enabled = enabled;
+        this.documentsPattern = documentsPattern;
+        this.iterations = iterations;
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!enabled) {
+            return;
+        }
+        List<byte[]> documents = loadDocuments();
+        if (documents.isEmpty()) {
+            log.warn("No warm-up documents found at {}", documentsPattern);
+            return;
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + maxDuration.toNanos();
+        while (completedIterations < iterations && System.nanoTime() < deadline) {
+            for (byte[] document : documents) {
+                sortEveryVariant(document);
+            }
+            completedIterations++;
+        }
+        log.info("Warmed up the sorter with {} iterations over {} documents in {} ms",
+                completedIterations, documents.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * @return the number of iterations over the warm-up documents completed on startup
+     */
+    public int getCompletedIterations() {
+        return completedIterations;
+    }
+
+    private void sortEveryVariant(byte[] document) {
+        for (XmlSorter xmlSorter : sorters) {
+            for (SortOptions options : VARIANTS) {
+                try {
+                    xmlSorter.sort(new String(document, StandardCharsets.UTF_8), options);
+                    xmlSorter.sort(new ByteArrayInputStream(document), options);
+                } catch (XmlSortingException e) {
+                    log.debug("Error sorting a warm-up document", e);
+                }
+            }
+        }
+    }
+
+    private List<byte[]> loadDocuments() {
+        List<byte[]> documents = new ArrayList<>();
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources(documentsPattern)) {
+                documents.add(StreamUtils.copyToByteArray(resource.getInputStream()));
+            }
+        } catch (IOException e) {
+            log.warn("Error loading the warm-up documents from {}", documentsPattern, e);
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,341 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.*;
+
+/**
+ * Computes order-independent 64-bit hashes of XML subtrees, so that identical siblings can be detected in constant
+ * time once their subtrees have been hashed.
+ * <p>
+ * Two subtrees get the same hash when they would produce the same sorted output: node names, attributes regardless of
+ * their order, trimmed values of non-element nodes, and child elements regardless of their order (each one along with
+ * the non-element nodes that precede it). Text nodes that contain only whitespace are ignored, just like the sorter
+ * ignores them.
+ * </p>
+ * <p>
+ * Since different subtrees may collide, equal hashes are confirmed by checking identical subtrees against a single
+ * representative subtree, so that two subtrees are the same exactly when they have the same representative. Every
+ * node is checked once, only against the representatives of its children, so identical siblings are still detected
+ * in constant time once their subtrees have been checked.
+ * </p>
+ * <p>
+ * Hashes and representatives are cached per node identity, so every node is hashed and checked at most once. An
+ * instance is meant to be used for a single sort operation and is not thread-safe. The input nodes are never modified.
+ * </p>
+ */
+public class SubtreeHasher {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Node, Long> hashes = new IdentityHashMap<>();
+    private final Map<Node, Node> representatives = new IdentityHashMap<>();
+    // The distinct representatives of every hash, of which there is more than one only when hashes collide
+    private final Map<Long, List<Node>> representativesByHash = new HashMap<>();
+
+    /**
+     * Returns the hash of the subtree rooted at the given node.
+     *
+     * @param node the root of the subtree to hash
+     * @return the 64-bit hash of the subtree
+     */
+    public long hash(Node node) {
+        Long cached = hashes.get(node);
+        if (cached != null) {
+            return cached;
+        }
+        long hash = node.getNodeType() == Node.ELEMENT_NODE ? hashElement(node) : hashNonElement(node);
+        hashes.put(node, hash);
+        return hash;
+    }
+
+    /**
+     * Takes over the hashes computed by another hasher of the same sort operation, like one used by another thread,
+     * so that they are not computed again. Its representatives are not taken over, since they are only unique within
+     * a hasher, and are checked again as needed.
+     *
+     * @param other the hasher whose hashes are taken over, which must no longer be in use
+     */
+    public void absorb(SubtreeHasher other) {
+        hashes.putAll(other.hashes);
+    }
+
+    /**
+     * Checks whether the two subtrees would produce the same sorted output.
+     * <p>
+     * Unlike comparing hashes, this check is exact: the subtrees are the same when they have the same
+     * {@link #representative(Node) representative}.
+     * </p>
+     *
+     * @param node1 the root of the first subtree
+     * @param node2 the root of the second subtree
+     * @return {@code true} if both subtrees are identical once sorted
+     */
+    public boolean isSameSubtree(Node node1, Node node2) {
+        if (node1 == node2) {
+            return true;
+        }
+        return hash(node1) == hash(node2) && representative(node1) == representative(node2);
+    }
+
+    /**
+     * Returns the representative of the given subtree: the first subtree checked by this hasher that would produce
+     * the same sorted output, possibly the given one itself.
+     *
+     * @param node the root of the subtree
+     * @return the root of the representative subtree, the same for all identical subtrees
+     */
+    public Node representative(Node node) {
+        Node representative = representatives.get(node);
+        if (representative != null) {
+            return representative;
+        }
+        List<Node> candidates = representativesByHash.computeIfAbsent(hash(node), k -> new ArrayList<>(1));
+        // Checking the content may add representatives of the children, whose hashes could collide with this one
+        for (int i = 0; i < candidates.size() && representative == null; i++) {
+            if (hasSameContent(node, candidates.get(i))) {
+                representative = candidates.get(i);
+            }
+        }
+        if (representative == null) {
+            representative = node;
+            candidates.add(node);
+        }
+        representatives.put(node, representative);
+        return representative;
+    }
+
+    /**
+     * Compares two subtrees by their exact content, so that different subtrees whose hashes collide still have a
+     * consistent order.
+     * <p>
+     * Like the hashes, the order of the attributes and of the child elements does not matter: {@code 0} is returned
+     * exactly when {@link #isSameSubtree(Node, Node)} holds. Meant to break ties only, as it walks and encodes both
+     * subtrees on every call.
+     * </p>
+     *
+     * @param node1 the root of the first subtree
+     * @param node2 the root of the second subtree
+     * @return a negative integer, zero, or a positive integer as the first subtree is less than, the same as, or
+     * greater than the second
+     */
+    public int compareExactly(Node node1, Node node2) {
+        if (node1 == node2) {
+            return 0;
+        }
+        return exactForm(node1).compareTo(exactForm(node2));
+    }
+
+    /**
+     * Encodes the subtree rooted at the given node the way it is hashed, with every part prefixed by its length, so
+     * that the encodings of two subtrees are equal only if they are the same once sorted.
+     */
+    private String exactForm(Node node) {
+        StringBuilder form = new StringBuilder();
+        appendPart(form, String.valueOf(node.getNodeType()));
+        appendPart(form, node.getNodeName());
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            appendPart(form, trimmedValue(node));
+            return form.toString();
+        }
+
+        // Attributes, in sorted order
+        if (node.hasAttributes()) {
+            List<Attr> attrList = new ArrayList<>(NodeConvertor.convertAttributesToList(node.getAttributes()));
+            attrList.sort(new AttributeComparator());
+            appendPart(form, String.valueOf(attrList.size()));
+            for (Attr attr : attrList) {
+                appendPart(form, attr.getNodeName());
+                appendPart(form, attr.getNodeValue());
+            }
+        } else {
+            appendPart(form, "0");
+        }
+
+        // Child elements, each with its preceding non-element nodes, in sorted order, then the bottom group
+        List<ChildGroup> groups = collectChildGroups(node);
+        List<String> groupForms = new ArrayList<>(groups.size());
+        for (ChildGroup group : groups) {
+            StringBuilder groupForm = new StringBuilder();
+            appendPart(groupForm, String.valueOf(group.nonElements().size()));
+            for (Node nonElement : group.nonElements()) {
+                appendPart(groupForm, exactForm(nonElement));
+            }
+            appendPart(groupForm, group.element() == null ? "" : exactForm(group.element()));
+            groupForms.add(groupForm.toString());
+        }
+        String bottomForm = groupForms.remove(groupForms.size() - 1);
+        Collections.sort(groupForms);
+        appendPart(form, String.valueOf(groupForms.size()));
+        for (String groupForm : groupForms) {
+            appendPart(form, groupForm);
+        }
+        appendPart(form, bottomForm);
+        return form.toString();
+    }
+
+    private static void appendPart(StringBuilder form, String part) {
+        form.append(part.length()).append(':').append(part);
+    }
+
+    private long hashElement(Node element) {
+        long hash = mix(FNV_OFFSET_BASIS, Node.ELEMENT_NODE);
+        hash = mix(hash, hashString(element.getNodeName()));
+
+        // Attributes, in sorted order
+        if (element.hasAttributes()) {
+            List<Attr> attrList = new ArrayList<>(NodeConvertor.convertAttributesToList(element.getAttributes()));
+            attrList.sort(new AttributeComparator());
+            for (Attr attr : attrList) {
+                hash = mix(hash, hashString(attr.getName()));
+                hash = mix(hash, hashString(attr.getValue()));
+            }
+        }
+
+        // Child elements, each with its preceding non-element nodes, regardless of their order
+        List<ChildGroup> groups = collectChildGroups(element);
+        long[] groupHashes = new long[groups.size() - 1];
+        for (int i = 0; i < groupHashes.length; i++) {
+            groupHashes[i] = groups.get(i).hash();
+        }
+        Arrays.sort(groupHashes);
+        hash = mix(hash, groupHashes.length);
+        for (long groupHash : groupHashes) {
+            hash = mix(hash, groupHash);
+        }
+
+        // Non-element nodes left at the bottom
+        return finish(mix(hash, groups.get(groups.size() - 1).hash()));
+    }
+
+    private long hashNonElement(Node node) {
+        long hash = mix(FNV_OFFSET_BASIS, node.getNodeType());
+        hash = mix(hash, hashString(node.getNodeName()));
+        return finish(mix(hash, hashString(trimmedValue(node))));
+    }
+
+    private boolean hasSameAttributes(Node element1, Node element2) {
+        NamedNodeMap attrs1 = element1.hasAttributes() ? element1.getAttributes() : null;
+        NamedNodeMap attrs2 = element2.hasAttributes() ? element2.getAttributes() : null;
+        int length1 = attrs1 == null ? 0 : attrs1.getLength();
+        int length2 = attrs2 == null ? 0 : attrs2.getLength();
+        if (length1 != length2) {
+            return false;
+        }
+        for (int i = 0; i < length1; i++) {
+            Node attr1 = attrs1.item(i);
+            Node attr2 = attrs2.getNamedItem(attr1.getNodeName());
+            if (attr2 == null || !attr1.getNodeValue().equals(attr2.getNodeValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given nodes have the same content, their children being compared by their representatives.
+     */
+    private boolean hasSameContent(Node node1, Node node2) {
+        if (node1.getNodeType() != node2.getNodeType() || !node1.getNodeName().equals(node2.getNodeName())) {
+            return false;
+        }
+        if (node1.getNodeType() != Node.ELEMENT_NODE) {
+            return trimmedValue(node1).equals(trimmedValue(node2));
+        }
+        return hasSameAttributes(node1, node2) && hasSameChildren(node1, node2);
+    }
+
+    private boolean hasSameChildren(Node element1, Node element2) {
+        List<ChildGroup> groups1 = collectChildGroups(element1);
+        List<ChildGroup> groups2 = collectChildGroups(element2);
+        if (groups1.size() != groups2.size()) {
+            return false;
+        }
+
+        // The bottom non-element nodes are kept in place, while every other group may be reordered
+        if (!representativesOf(groups1.remove(groups1.size() - 1))
+                .equals(representativesOf(groups2.remove(groups2.size() - 1)))) {
+            return false;
+        }
+        Map<List<Node>, Integer> unmatched = new HashMap<>();
+        for (ChildGroup group : groups2) {
+            unmatched.merge(representativesOf(group), 1, Integer::sum);
+        }
+        for (ChildGroup group : groups1) {
+            if (unmatched.merge(representativesOf(group), -1, Integer::sum) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists the representatives of the nodes of the given group, in order, which are equal lists exactly when the
+     * groups are the same, since DOM nodes are only equal to themselves.
+     */
+    private List<Node> representativesOf(ChildGroup group) {
+        List<Node> groupRepresentatives = new ArrayList<>(group.nonElements().size() + 1);
+        for (Node nonElement : group.nonElements()) {
+            groupRepresentatives.add(representative(nonElement));
+        }
+        groupRepresentatives.add(group.element() == null ? null : representative(group.element()));
+        return groupRepresentatives;
+    }
+
+    /**
+     * Splits the children of the given element into groups of an element and its preceding non-element nodes.
+     * The last group has no element and holds the non-element nodes left at the bottom.
+     */
+    private List<ChildGroup> collectChildGroups(Node element) {
+        List<ChildGroup> groups = new ArrayList<>();
+        List<Node> nonElements = new ArrayList<>();
+        long nonElementsHash = FNV_OFFSET_BASIS;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                groups.add(new ChildGroup(nonElements, child, finish(mix(nonElementsHash, hash(child)))));
+                nonElements = new ArrayList<>();
+                nonElementsHash = FNV_OFFSET_BASIS;
+            } else if (child.getNodeType() != Node.TEXT_NODE || !trimmedValue(child).isEmpty()) {
+                nonElements.add(child);
+                nonElementsHash = mix(nonElementsHash, hash(child));
+            }
+        }
+        groups.add(new ChildGroup(nonElements, null, finish(nonElementsHash)));
+        return groups;
+    }
+
+    private static String trimmedValue(Node node) {
+        String value = node.getNodeValue();
+        return value == null ? "" : value.trim();
+    }
+
+    private static long hashString(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash, value.length());
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ finish(value)) * FNV_PRIME + 0x9e3779b97f4a7c15L;
+    }
+
+    /**
+     * The finalization step of MurmurHash3, spreading every input bit over the whole hash.
+     */
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private record ChildGroup(List<Node> nonElements, Node element, long hash) {
+    }
+}
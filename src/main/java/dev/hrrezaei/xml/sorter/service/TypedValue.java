@@ -0,0 +1,134 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import java.math.BigDecimal;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A value parsed once into primitive sort keys, so that comparing it does not involve any parsing.
+ * <p>
+ * Numbers sort before dates, which sort before any other value, compared as strings. Numbers are compared by their
+ * {@code double} value, and then by their exact value: a {@code long} for the integers that fit in one, or else a
+ * {@link BigDecimal}, while dates are compared by their instant. Values of the same magnitude, like {@code 1} and
+ * {@code 1.0}, finally fall back to their text, so that the order stays total and deterministic.
+ * </p>
+ */
+public final class TypedValue implements Comparable<TypedValue> {
+
+    private static final Pattern INTEGER = Pattern.compile("[+-]?\\d+");
+    private static final Pattern DECIMAL = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+
+    // The kinds of values, in their sort order
+    private static final int NUMBER = 0;
+    private static final int DATE = 1;
+    private static final int STRING = 2;
+
+    private final int kind;
+    private final double primary;
+    private final long secondary;
+    // The exact value of the numbers that do not fit in a long, which the double may round
+    private final BigDecimal exact;
+    private final String text;
+
+    private TypedValue(int kind, double primary, long secondary, String text) {
+        this(kind, primary, secondary, null, text);
+    }
+
+    private TypedValue(int kind, double primary, long secondary, BigDecimal exact, String text) {
+        this.kind = kind;
+        this.primary = primary;
+        this.secondary = secondary;
+        this.exact = exact;
+        this.text = text;
+    }
+
+    /**
+     * Parses the given value as the first of the given types it matches, or keeps it as a string.
+     *
+     * @param value the value to parse, with any surrounding whitespace ignored
+     * @param types the types to detect
+     * @return the parsed value
+     */
+    public static TypedValue parse(String value, Set<ValueType> types) {
+        String text = value.strip();
+        if (!text.isEmpty() && !types.isEmpty()) {
+            if (types.contains(ValueType.INTEGER) && INTEGER.matcher(text).matches()) {
+                return integer(text, value);
+            }
+            if (types.contains(ValueType.DECIMAL) && DECIMAL.matcher(text).matches()) {
+                // Adding 0.0 turns -0.0 into 0.0, which compare differently
+                double number = Double.parseDouble(text) + 0.0;
+                return new TypedValue(NUMBER, number, (long) number, exactDecimal(text), value);
+            }
+            if (types.contains(ValueType.DATE) && looksLikeDate(text)) {
+                Instant instant = parseInstant(text);
+                if (instant != null) {
+                    return new TypedValue(DATE, instant.getEpochSecond(), instant.getNano(), value);
+                }
+            }
+        }
+        return new TypedValue(STRING, 0, 0, value);
+    }
+
+    private static TypedValue integer(String text, String value) {
+        double number = Double.parseDouble(text) + 0.0;
+        try {
+            return new TypedValue(NUMBER, number, Long.parseLong(text), value);
+        } catch (NumberFormatException e) {
+            // Beyond the range of long, where distinct integers may have the same double value
+            return new TypedValue(NUMBER, number, (long) number, new BigDecimal(text), value);
+        }
+    }
+
+    private static BigDecimal exactDecimal(String text) {
+        try {
+            return new BigDecimal(text);
+        } catch (NumberFormatException e) {
+            // An exponent beyond the range of int, whose double value is infinite or zero anyway
+            return null;
+        }
+    }
+
+    private static boolean looksLikeDate(String text) {
+        return text.length() >= 10 && text.charAt(4) == '-' && text.charAt(7) == '-' && Character.isDigit(text.charAt(0));
+    }
+
+    private static Instant parseInstant(String text) {
+        try {
+            if (text.length() == 10) {
+                return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+            if (text.endsWith("Z") || text.lastIndexOf('+') > 10 || text.lastIndexOf('-') > 10) {
+                return OffsetDateTime.parse(text).toInstant();
+            }
+            return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int compareTo(TypedValue other) {
+        int comparison = Integer.compare(kind, other.kind);
+        if (comparison == 0 && kind != STRING) {
+            comparison = Double.compare(primary, other.primary);
+            if (comparison == 0) {
+                comparison = exact == null && other.exact == null
+                        ? Long.compare(secondary, other.secondary)
+                        : exactNumber().compareTo(other.exactNumber());
+            }
+        }
+        return comparison != 0 ? comparison : text.compareTo(other.text);
+    }
+
+    private BigDecimal exactNumber() {
+        return exact != null ? exact : BigDecimal.valueOf(secondary);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,27 @@
+package dev.hrrezaei.xml.sorter.service;
+
+/**
+ * The types of attribute values and text contents that can be compared by their typed value rather than as strings,
+ * so that, for instance, {@code 9} sorts before {@code 10}.
+ *
+ * @see SortOptions#getValueTypes()
+ */
+public enum ValueType {
+
+    /**
+     * Whole numbers, like {@code 42} or {@code -7}.
+     */
+    INTEGER,
+
+    /**
+     * Decimal numbers, like {@code 3.14}, {@code -.5} or {@code 1e-3}, and whole numbers when {@link #INTEGER} is not
+     * enabled.
+     */
+    DECIMAL,
+
+    /**
+     * ISO-8601 dates and date-times, like {@code 2024-01-31}, {@code 2024-01-31T10:15:30} or
+     * {@code 2024-01-31T10:15:30+01:00}. Dates and date-times without an offset are taken as UTC.
+     */
+    DATE
+}
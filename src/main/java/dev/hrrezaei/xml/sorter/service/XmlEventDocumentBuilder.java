@@ -0,0 +1,142 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.events.*;
+import java.util.Iterator;
+
+/**
+ * Builds a DOM {@code Document} incrementally from StAX {@code XMLEvent}s, as they are produced by a non-blocking
+ * parser, so that no thread has to wait for the whole input to arrive.
+ * <p>
+ * The XML declaration is not part of a {@code Document} built this way; only its encoding and standalone status are
+ * kept. DOCTYPE declarations are rejected, just like when parsing XML content directly.
+ * An instance builds a single document and is not thread-safe.
+ * </p>
+ */
+public class XmlEventDocumentBuilder {
+
+    private final Document document;
+    private Node current;
+    private String encoding;
+
+    public XmlEventDocumentBuilder() throws XmlSortingException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            this.document = factory.newDocumentBuilder().newDocument();
+            this.current = document;
+        } catch (ParserConfigurationException e) {
+            throw new XmlSortingException("Error creating the XML document", e);
+        }
+    }
+
+    /**
+     * Adds the node described by the given event to the document being built.
+     *
+     * @param event the next event of the XML content
+     * @throws XmlSortingException if the event is not allowed, like a DOCTYPE declaration
+     */
+    public void add(XMLEvent event) throws XmlSortingException {
+        switch (event.getEventType()) {
+            case XMLStreamConstants.START_DOCUMENT -> startDocument((StartDocument) event);
+            case XMLStreamConstants.START_ELEMENT -> {
+                Element element = createElement(event.asStartElement());
+                current.appendChild(element);
+                current = element;
+            }
+            case XMLStreamConstants.END_ELEMENT -> current = current.getParentNode();
+            case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE, XMLStreamConstants.CDATA ->
+                    addCharacters(event.asCharacters());
+            case XMLStreamConstants.COMMENT -> current.appendChild(document.createComment(((Comment) event).getText()));
+            case XMLStreamConstants.PROCESSING_INSTRUCTION -> {
+                ProcessingInstruction instruction = (ProcessingInstruction) event;
+                current.appendChild(document.createProcessingInstruction(instruction.getTarget(), instruction.getData()));
+            }
+            case XMLStreamConstants.DTD -> throw new XmlSortingException("DOCTYPE declarations are not allowed");
+            default -> {
+                // Nothing to add for the end of the document
+            }
+        }
+    }
+
+    /**
+     * Returns the document built so far, which should be complete once every event has been added.
+     *
+     * @return the built document
+     * @throws XmlSortingException if the document has no root element, or some elements are not closed
+     */
+    public Document getDocument() throws XmlSortingException {
+        if (document.getDocumentElement() == null || current != document) {
+            throw new XmlSortingException("Incomplete XML content");
+        }
+        return document;
+    }
+
+    /**
+     * @return the encoding declared by the XML declaration, or {@code null} if none was declared
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    private void startDocument(StartDocument startDocument) {
+        if (startDocument.encodingSet()) {
+            encoding = startDocument.getCharacterEncodingScheme();
+        }
+        if (startDocument.standaloneSet()) {
+            document.setXmlStandalone(startDocument.isStandalone());
+        }
+    }
+
+    private Element createElement(StartElement startElement) {
+        Element element = document.createElementNS(emptyToNull(startElement.getName().getNamespaceURI()),
+                qualifiedName(startElement.getName().getPrefix(), startElement.getName().getLocalPart()));
+        for (Iterator<Namespace> namespaces = startElement.getNamespaces(); namespaces.hasNext(); ) {
+            Namespace namespace = namespaces.next();
+            String name = namespace.isDefaultNamespaceDeclaration()
+                    ? XMLConstants.XMLNS_ATTRIBUTE
+                    : XMLConstants.XMLNS_ATTRIBUTE + ":" + namespace.getPrefix();
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, namespace.getNamespaceURI());
+        }
+        for (Iterator<Attribute> attributes = startElement.getAttributes(); attributes.hasNext(); ) {
+            Attribute attribute = attributes.next();
+            element.setAttributeNS(emptyToNull(attribute.getName().getNamespaceURI()),
+                    qualifiedName(attribute.getName().getPrefix(), attribute.getName().getLocalPart()),
+                    attribute.getValue());
+        }
+        return element;
+    }
+
+    private void addCharacters(Characters characters) {
+        if (current == document) {
+            // Whitespace outside the root element is not part of the document
+            return;
+        }
+        if (characters.isCData()) {
+            current.appendChild(document.createCDATASection(characters.getData()));
+        } else if (current.getLastChild() instanceof Text text && !(text instanceof CDATASection)) {
+            // Parsers may report a single text node as several events, e.g. around entities or across input buffers
+            text.appendData(characters.getData());
+        } else {
+            current.appendChild(document.createTextNode(characters.getData()));
+        }
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
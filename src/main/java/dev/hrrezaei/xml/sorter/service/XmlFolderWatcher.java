@@ -0,0 +1,393 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the XML files of a directory tree sorted, sorting them in place as they are created or changed.
+ * <p>
+ * On start, every file of the tree is sorted, and the tree is then watched with a {@link WatchService}. Changes are
+ * collected until the tree has been quiet for a short while, so that a file being written or a checkout touching
+ * many files is handled as a single batch, and the changed files of a batch are sorted in parallel by a pool of
+ * workers.
+ * </p>
+ * <p>
+ * A {@link ContentHashIndex} of the files known to be sorted is kept next to them, so that unchanged files are
+ * skipped, including on restart, without even being parsed. Files that are already sorted are only recorded, not
+ * rewritten, and sorted files are written to a temporary file that then replaces them, so that readers never see a
+ * partially written file. A file changed while being sorted is not replaced, and is sorted again on its next change
+ * instead. The writes of the watcher trigger change events of their own, which the index recognizes, so they do not
+ * loop. A file that cannot be sorted, like one that is still being written, is left untouched and
+ * retried on its next change.
+ * </p>
+ * <p>
+ * The watcher is only started when {@code sorter.watch.enabled} is {@code true}, and is tuned with the
+ * {@code sorter.watch.*} properties.
+ * </p>
+ */
+@Log4j2
+@Component
+@ConditionalOnProperty(prefix = "sorter.watch", name = "enabled", havingValue = "true")
+public class XmlFolderWatcher implements SmartLifecycle {
+
+    private static final String DEFAULT_INDEX_FILE = ".xml-sorter-index";
+
+    private final XmlSorter xmlSorter;
+    private final Path directory;
+    private final PathMatcher fileMatcher;
+    private final Duration debounce;
+    private final SortOptions options;
+    private final ContentHashIndex index;
+    private final ExecutorService workers;
+    private volatile Thread watchThread;
+
+    @Autowired
+    public XmlFolderWatcher(XmlSorter xmlSorter,
+                            @Value("${sorter.watch.directory}") Path directory,
+                            @Value("${sorter.watch.file-pattern:*.xml}") String filePattern,
+                            @Value("${sorter.watch.index-file:}") String indexFile,
+                            @Value("${sorter.watch.workers:0}") int workerCount,
+                            @Value("${sorter.watch.debounce:PT0.5S}") Duration debounce,
+                            @Value("${sorter.watch.output-format:INDENTED}") OutputFormat outputFormat) {
+        this.xmlSorter = xmlSorter;
+        this.directory = directory.toAbsolutePath().normalize();
+        this.fileMatcher = FileSystems.getDefault().getPathMatcher("glob:" + filePattern);
+        this.debounce = debounce;
+        this.options = SortOptions.builder().outputFormat(outputFormat).build();
+        this.index = new ContentHashIndex(this.directory,
+                indexFile.isEmpty() ? this.directory.resolve(DEFAULT_INDEX_FILE) : Path.of(indexFile), options);
+        int threads = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("xml-folder-sorter-", 1).daemon().factory());
+    }
+
+    @Override
+    public void start() {
+        Thread thread = new Thread(this::watch, "xml-folder-watcher");
+        thread.setDaemon(true);
+        watchThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = watchThread;
+        watchThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(debounce.toMillis() + 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return watchThread != null;
+    }
+
+    /**
+     * Sorts every matching file of the directory tree that is not known to be sorted.
+     *
+     * @return the number of files rewritten
+     * @throws XmlSortingException if the directory tree cannot be listed
+     */
+    public int sortAll() throws XmlSortingException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return sortFiles(files.filter(this::isWatchedFile).toList());
+        } catch (IOException e) {
+            throw new XmlSortingException("Error listing the XML files of " + directory, e);
+        }
+    }
+
+    /**
+     * Sorts the given files in parallel, skipping the ones known to be sorted, and saves the index.
+     *
+     * @param files the files to sort
+     * @return the number of files rewritten
+     * @throws XmlSortingException if interrupted while waiting for the files to be sorted
+     */
+    public int sortFiles(Collection<Path> files) throws XmlSortingException {
+        List<Callable<Boolean>> tasks = files.stream()
+                .map(file -> (Callable<Boolean>) () -> sortFile(file))
+                .toList();
+        int rewritten = 0;
+        try {
+            for (Future<Boolean> result : workers.invokeAll(tasks)) {
+                if (result.get()) {
+                    rewritten++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XmlSortingException("Interrupted while sorting the XML files of " + directory, e);
+        } catch (ExecutionException e) {
+            throw new XmlSortingException("Error sorting the XML files of " + directory, e.getCause());
+        }
+
+        try {
+            index.save();
+        } catch (IOException e) {
+            log.warn("Error saving the index of sorted files of {}", directory, e);
+        }
+        log.info("Checked {} XML files of {}, rewriting {}", files.size(), directory, rewritten);
+        return rewritten;
+    }
+
+    /**
+     * @return the index of the files known to be sorted
+     */
+    public ContentHashIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sorts the given file in place, unless it is known to be sorted already.
+     *
+     * @return {@code true} if the file was rewritten
+     */
+    private boolean sortFile(Path file) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            index.remove(file);
+            return false;
+        } catch (IOException e) {
+            log.warn("Error reading {}: {}", file, e.getMessage());
+            return false;
+        }
+        String hash = ContentHashIndex.hash(content);
+        if (index.isSorted(file, hash)) {
+            return false;
+        }
+
+        // The file is rewritten in its own encoding, so it must decode and encode back without any loss
+        FileEncoding encoding = FileEncoding.detect(content);
+        String xmlContent;
+        try {
+            xmlContent = encoding.decode(content);
+        } catch (CharacterCodingException | IllegalArgumentException e) {
+            log.warn("Error decoding {} in {}, leaving it as is: {}", file, encoding.charsetName(), e.toString());
+            index.remove(file);
+            return false;
+        }
+
+        String sortedXml;
+        try {
+            sortedXml = xmlSorter.sort(xmlContent, options);
+        } catch (XmlSortingException e) {
+            log.warn("Error sorting {}, leaving it as is: {}", file, e.getMessage());
+            index.remove(file);
+            return false;
+        }
+        // Canonical XML has no declaration to name another encoding, so it is always UTF-8
+        FileEncoding sortedEncoding =
+                options.getOutputFormat() == OutputFormat.CANONICAL ? FileEncoding.UTF_8 : encoding;
+        // Text files end with a line break, which the sorted content lacks
+        byte[] sortedContent;
+        try {
+            sortedContent = sortedEncoding.encode(sortedXml + "\n");
+        } catch (CharacterCodingException e) {
+            log.warn("Error encoding the sorted {} in {}, leaving it as is: {}", file, sortedEncoding.charsetName(),
+                    e.toString());
+            index.remove(file);
+            return false;
+        }
+        if (Arrays.equals(content, sortedContent)) {
+            index.recordSorted(file, hash);
+            return false;
+        }
+
+        try {
+            Path tempFile = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+            try {
+                Files.write(tempFile, sortedContent);
+                // A file written while being sorted is left to its next change event, rather than overwritten
+                if (!Arrays.equals(content, Files.readAllBytes(file))) {
+                    log.debug("{} changed while being sorted, leaving it as is", file);
+                    return false;
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (NoSuchFileException e) {
+            index.remove(file);
+            return false;
+        } catch (IOException e) {
+            log.warn("Error writing the sorted {}: {}", file, e.getMessage());
+            return false;
+        }
+        index.recordSorted(file, ContentHashIndex.hash(sortedContent));
+        log.debug("Sorted {}", file);
+        return true;
+    }
+
+    /**
+     * The encoding of an XML file: the charset of its byte order mark if any, or else the one named by its XML
+     * declaration, or else UTF-8. Files sorted to canonical XML are written in UTF-8, without a byte order mark.
+     * Decoding and encoding are strict, so that a file is never rewritten with characters that its charset cannot
+     * hold, or that it did not hold in the first place.
+     */
+    private record FileEncoding(String charsetName, byte[] byteOrderMark) {
+
+        private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+        private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+        static final FileEncoding UTF_8 = new FileEncoding(StandardCharsets.UTF_8.name(), new byte[0]);
+        private static final Pattern DECLARED_ENCODING =
+                Pattern.compile("^<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._-]*)[\"']");
+
+        static FileEncoding detect(byte[] content) {
+            if (startsWith(content, UTF_8_BOM)) {
+                return new FileEncoding(StandardCharsets.UTF_8.name(), UTF_8_BOM);
+            }
+            if (startsWith(content, UTF_16BE_BOM)) {
+                return new FileEncoding(StandardCharsets.UTF_16BE.name(), UTF_16BE_BOM);
+            }
+            if (startsWith(content, UTF_16LE_BOM)) {
+                return new FileEncoding(StandardCharsets.UTF_16LE.name(), UTF_16LE_BOM);
+            }
+            // The declaration is made of ASCII characters in every ASCII compatible charset
+            String start = new String(content, 0, Math.min(content.length, 256), StandardCharsets.ISO_8859_1);
+            Matcher matcher = DECLARED_ENCODING.matcher(start);
+            return matcher.find() ? new FileEncoding(matcher.group(1), new byte[0]) : UTF_8;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the charset is not supported
+         */
+        String decode(byte[] content) throws CharacterCodingException {
+            return Charset.forName(charsetName).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(content, byteOrderMark.length, content.length - byteOrderMark.length))
+                    .toString();
+        }
+
+        byte[] encode(String content) throws CharacterCodingException {
+            ByteBuffer encoded = Charset.forName(charsetName).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .encode(CharBuffer.wrap(content));
+            byte[] bytes = new byte[byteOrderMark.length + encoded.remaining()];
+            System.arraycopy(byteOrderMark, 0, bytes, 0, byteOrderMark.length);
+            encoded.get(bytes, byteOrderMark.length, encoded.remaining());
+            return bytes;
+        }
+
+        private static boolean startsWith(byte[] content, byte[] prefix) {
+            return content.length >= prefix.length
+                   && Arrays.equals(content, 0, prefix.length, prefix, 0, prefix.length);
+        }
+    }
+
+    private void watch() {
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            // Registering before the initial sorting ensures no change is missed in between
+            Map<WatchKey, Path> directories = new HashMap<>();
+            register(watchService, directory, directories);
+            sortAll();
+
+            while (watchThread == Thread.currentThread()) {
+                Set<Path> changedFiles = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                boolean overflow = false;
+                // Collects the changes until the tree is quiet for the debounce period
+                while (key != null) {
+                    overflow |= collectChanges(watchService, key, directories, changedFiles);
+                    key = watchService.poll(debounce.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                if (overflow) {
+                    sortAll();
+                } else if (!changedFiles.isEmpty()) {
+                    sortFiles(changedFiles);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | XmlSortingException e) {
+            // Errors caused by stopping the watcher are expected
+            if (watchThread == Thread.currentThread()) {
+                log.error("Stopped watching {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * Collects the files changed according to the events of the given key, registering new directories.
+     *
+     * @return {@code true} if some events were lost and the whole tree must be checked
+     */
+    private boolean collectChanges(WatchService watchService, WatchKey key, Map<WatchKey, Path> directories,
+                                   Set<Path> changedFiles) throws IOException {
+        Path eventDirectory = directories.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || eventDirectory == null) {
+                overflow = true;
+                continue;
+            }
+            Path path = eventDirectory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                index.remove(path);
+                changedFiles.remove(path);
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    // Files created along with the directory may predate its registration
+                    register(watchService, path, directories);
+                    try (Stream<Path> files = Files.walk(path)) {
+                        files.filter(this::isWatchedFile).forEach(changedFiles::add);
+                    }
+                }
+            } else if (isWatchedFile(path)) {
+                changedFiles.add(path);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    private void register(WatchService watchService, Path root, Map<WatchKey, Path> directories) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isWatchedFile(Path path) {
+        return fileMatcher.matches(path.getFileName()) && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
+    }
+}
@@ -1,10 +1,12 @@
 package dev.hrrezaei.xml.sorter.service;
 
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
 import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
 import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 
 import static dev.hrrezaei.xml.sorter.service.FileUtil.readInputStream;
@@ -15,6 +17,12 @@ import static dev.hrrezaei.xml.sorter.service.FileUtil.readInputStream;
  */
 public interface XmlSorter {
 
+    /**
+     * The version of the sorted output, to be bumped whenever a change to the sorter makes some input sort differently
+     * with the same options, so that sorted results stored by a previous version are not taken as current.
+     */
+    int OUTPUT_VERSION = 2;
+
     /**
      * Sorts the XML content from the specified {@code File}.
      * <p>
@@ -26,8 +34,22 @@ public interface XmlSorter {
      * @throws XmlSortingException if an error occurs during file access, parsing, or sorting
      */
     default String sort(File file) throws XmlSortingException {
+        return sort(file, SortOptions.DEFAULT);
+    }
+
+    /**
+     * Sorts the XML content from the specified {@code File} using the given {@code SortOptions}.
+     *
+     * @param file    the {@code File} containing the XML content to be sorted
+     * @param options the options tuning how the content is sorted
+     * @return the sorted XML content as a {@code String}
+     * @throws XmlSortingException if an error occurs during file access, parsing, or sorting
+     */
+    default String sort(File file, SortOptions options) throws XmlSortingException {
         try (InputStream inputStream = new FileInputStream(file)) {
-            return sort(inputStream);
+            return sort(inputStream, options);
+        } catch (SortCancelledException e) {
+            throw e;
         } catch (Exception e) {
             throw new XmlSortingException("Error sorting XML content from File", e);
         }
@@ -44,9 +66,23 @@ public interface XmlSorter {
      * @throws XmlSortingException if an error occurs during reading, parsing, or sorting
      */
     default String sort(InputStream inputStream) throws XmlSortingException {
+        return sort(inputStream, SortOptions.DEFAULT);
+    }
+
+    /**
+     * Sorts the XML content read from the given {@code InputStream} using the given {@code SortOptions}.
+     *
+     * @param inputStream the {@code InputStream} containing the XML content to be sorted
+     * @param options     the options tuning how the content is sorted
+     * @return the sorted XML content as a {@code String}
+     * @throws XmlSortingException if an error occurs during reading, parsing, or sorting
+     */
+    default String sort(InputStream inputStream, SortOptions options) throws XmlSortingException {
         try {
             String xmlContent = readInputStream(inputStream);
-            return sort(xmlContent);
+            return sort(xmlContent, options);
+        } catch (SortCancelledException e) {
+            throw e;
         } catch (Exception e) {
             throw new XmlSortingException("Error sorting XML content from InputStream", e);
         }
@@ -63,9 +99,23 @@ public interface XmlSorter {
      * @throws XmlSortingException if an error occurs during parsing or sorting
      */
     default String sort(String xmlContent) throws XmlSortingException {
+        return sort(xmlContent, SortOptions.DEFAULT);
+    }
+
+    /**
+     * Sorts the given XML content represented as a {@code String} using the given {@code SortOptions}.
+     *
+     * @param xmlContent the XML content to be sorted
+     * @param options    the options tuning how the content is sorted
+     * @return the sorted XML content as a {@code String}
+     * @throws XmlSortingException if an error occurs during parsing or sorting
+     */
+    default String sort(String xmlContent, SortOptions options) throws XmlSortingException {
         try {
             Document document = parseXmlContent(xmlContent);
-            return sort(document);
+            return sort(document, options);
+        } catch (SortCancelledException e) {
+            throw e;
         } catch (Exception e) {
             throw new XmlSortingException("Error sorting XML content from String", e);
         }
@@ -81,7 +131,22 @@ public interface XmlSorter {
      * @return the sorted XML content as a {@code String}
      * @throws XmlSortingException if an error occurs during sorting or transformation
      */
-    String sort(Document document) throws XmlSortingException;
+    default String sort(Document document) throws XmlSortingException {
+        return sort(document, SortOptions.DEFAULT);
+    }
+
+    /**
+     * Sorts the given XML {@code Document} object using the given {@code SortOptions}.
+     * <p>
+     * Unless {@link SortOptions#isPreserveInput()} is set, the provided {@code Document} is sorted in place.
+     * </p>
+     *
+     * @param document the XML {@code Document} to be sorted
+     * @param options  the options tuning how the document is sorted
+     * @return the sorted XML content as a {@code String}
+     * @throws XmlSortingException if an error occurs during sorting or transformation
+     */
+    String sort(Document document, SortOptions options) throws XmlSortingException;
 
     /**
      * Parses the XML content from a {@code String} into a {@code Document} object.
@@ -91,14 +156,27 @@ public interface XmlSorter {
      * @throws Exception if an error occurs during parsing
      */
     default Document parseXmlContent(String xmlContent) throws Exception {
+        DocumentBuilder builder = newDocumentBuilder();
+        try (InputStream inputStream = new ByteArrayInputStream(xmlContent.getBytes())) {
+            return builder.parse(inputStream);
+        }
+    }
+
+    /**
+     * Creates a namespace-aware {@code DocumentBuilder} rejecting document type declarations, as used to parse the
+     * XML content to sort.
+     *
+     * @return a new {@code DocumentBuilder}
+     * @throws ParserConfigurationException if the builder cannot be configured
+     */
+    static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
         // Disable external entities for security
         factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        try (InputStream inputStream = new ByteArrayInputStream(xmlContent.getBytes())) {
-            return builder.parse(inputStream);
-        }
+        // Expand the whole tree eagerly, so that reading a parsed Document never mutates it lazily
+        factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+        return factory.newDocumentBuilder();
     }
 
 }
\ No newline at end of file
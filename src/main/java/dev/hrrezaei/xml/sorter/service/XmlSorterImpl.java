@@ -1,23 +1,28 @@
 package dev.hrrezaei.xml.sorter.service;
 
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
 import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.w3c.dom.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static dev.hrrezaei.xml.sorter.service.NodeConvertor.convertAttributesToList;
-import static dev.hrrezaei.xml.sorter.service.NodeConvertor.convertNodeToExpandedString;
 import static org.apache.logging.log4j.util.Strings.isBlank;
 
 @Log4j2
@@ -27,6 +32,23 @@ public class XmlSorterImpl implements XmlSorter {
     // ThreadLocal to store the xmlDeclaration per thread
     private static final ThreadLocal<String> xmlDeclaration = new ThreadLocal<>();
 
+    private final int parallelism;
+
+    public XmlSorterImpl() {
+        this(1);
+    }
+
+    /**
+     * Creates a sorter that sorts the child elements of record-oriented elements in parallel, unless the options of a
+     * sort operation set their own {@link SortOptions#getParallelism() parallelism}.
+     *
+     * @param parallelism the maximum number of shards sorted in parallel, {@code 0} for one per available processor
+     */
+    @Autowired
+    public XmlSorterImpl(@Value("${sorter.parallelism:1}") int parallelism) {
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
     /**
      * Sorts the given XML content according to the defined sorting rules.
      * <p>
@@ -34,14 +56,34 @@ public class XmlSorterImpl implements XmlSorter {
      * The XML content is then parsed into a DOM Document for processing.
      * After sorting, the original XML declaration is reattached to the output if it was present in the input.
      * </p>
+     * <p>
+     * When {@link SortOptions#getIncludePaths() include paths} are given, only the selected subtrees are parsed into
+     * a DOM and sorted, while the rest of the content is streamed through as it is. The canonical output format
+     * rewrites the whole document anyway, so it always goes through the DOM.
+     * </p>
+     * <p>
+     * The {@link SortOptions#getDeadline() deadline} of the options is checked once the content is parsed, and then
+     * while sorting and serializing it.
+     * </p>
      *
      * @param xmlContent the XML content to sort as a String
+     * @param options    the options tuning how the content is sorted
      * @return the sorted XML content as a String
-     * @throws XmlSortingException if an error occurs during parsing or sorting
+     * @throws SortCancelledException if the deadline is over before the content is sorted
+     * @throws XmlSortingException    if an error occurs during parsing or sorting
      */
     @Override
-    public String sort(String xmlContent) throws XmlSortingException {
+    public String sort(String xmlContent, SortOptions options) throws XmlSortingException {
         log.debug("Received XML content: \n{}", xmlContent);
+        if (isStreamingPathSelection(options)) {
+            try {
+                StringWriter writer = new StringWriter();
+                new PathSelectiveSorter(withParallelism(options)).sort(new StringReader(xmlContent.trim()), writer);
+                return writer.toString().trim();
+            } catch (CancellationException e) {
+                throw cancelled(options.getDeadline(), e);
+            }
+        }
         try {
             String trimmedXmlContent = xmlContent.trim();
 
@@ -52,21 +94,52 @@ public class XmlSorterImpl implements XmlSorter {
                 if (endIndex > -1) {
                     // Extract the XML declaration
                     xmlDeclaration.set(trimmedXmlContent.substring(0, endIndex + 2));
-                    log.info("XML declaration is preserved: [{}]", xmlDeclaration.get());
+                    log.debug("XML declaration is preserved: [{}]", xmlDeclaration.get());
                     // Remove the declaration from the content
                     xmlContent = trimmedXmlContent.substring(endIndex + 2).trim();
                 }
             }
 
+            SorterEvents.ParseEvent parseEvent = new SorterEvents.ParseEvent();
+            parseEvent.begin();
             Document document = parseXmlContent(xmlContent);
-            return sort(document);
+            parseEvent.report(xmlContent);
+            options.getDeadline().check();
+            return sort(document, options);
         } catch (Exception e) {
-            throw new XmlSortingException("Error sorting XML content from String", e);
+            throw failure("Error sorting XML content from String", e, options.getDeadline());
         } finally {
             xmlDeclaration.remove();
         }
     }
 
+    /**
+     * Sorts the XML content read from the given {@code InputStream}.
+     * <p>
+     * When {@link SortOptions#getIncludePaths() include paths} are given, the content is streamed and only the
+     * selected subtrees are parsed into a DOM, instead of reading the whole content into memory first.
+     * </p>
+     *
+     * @param inputStream the {@code InputStream} containing the XML content to be sorted
+     * @param options     the options tuning how the content is sorted
+     * @return the sorted XML content as a String
+     * @throws SortCancelledException if the deadline is over before the content is sorted
+     * @throws XmlSortingException    if an error occurs during reading, parsing, or sorting
+     */
+    @Override
+    public String sort(InputStream inputStream, SortOptions options) throws XmlSortingException {
+        if (!isStreamingPathSelection(options)) {
+            return XmlSorter.super.sort(inputStream, options);
+        }
+        try {
+            StringWriter writer = new StringWriter();
+            new PathSelectiveSorter(withParallelism(options)).sort(inputStream, writer);
+            return writer.toString().trim();
+        } catch (CancellationException e) {
+            throw cancelled(options.getDeadline(), e);
+        }
+    }
+
     /**
      * Sorts the given XML Document according to the defined sorting rules.
      * <p>
@@ -81,175 +154,158 @@ public class XmlSorterImpl implements XmlSorter {
      * and no ENCODING is detected by the Document, the output will not include an XML declaration, even if the Document
      * object has default values for VERSION or STANDALONE.
      * </p>
+     * <p>
+     * When {@link SortOptions#isPreserveInput()} is set, the provided Document is only read: the sorted result is
+     * built into a fresh Document, so the same parsed Document can be sorted again or by several threads at once.
+     * </p>
+     * <p>
+     * With the {@link OutputFormat#CANONICAL} format, the sorted Document is written by a {@link CanonicalXmlWriter}
+     * instead of the Transformer, and never has an XML declaration.
+     * </p>
      *
      * @param document the XML Document to sort
+     * @param options  the options tuning how the document is sorted
      * @return the sorted XML content as a String
-     * @throws XmlSortingException if an error occurs during sorting or transformation
+     * @throws SortCancelledException if the deadline is over before the document is sorted and serialized
+     * @throws XmlSortingException    if an error occurs during sorting or transformation
      */
     @Override
-    public String sort(Document document) throws XmlSortingException {
+    public String sort(Document document, SortOptions options) throws XmlSortingException {
+        SortDeadline deadline = options.getDeadline();
         try {
+            deadline.check();
             // Start sorting from the root element
-            Node root = document.getDocumentElement();
-            sortNode(root);
-
-            // Transform the Document back to a String
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            // Indentation settings
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-number", "4");
-
-            // By default, ignore the declaration tag, unless strong document(s) exist
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            if (isBlank(xmlDeclaration.get())) {
-                // It's not guaranteed that this version is extracted from the input document. It could be the default value.
-                String xmlVersion = document.getXmlVersion();
-                String encoding = document.getXmlEncoding();
-                if (encoding != null) {
-                    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-                    if (xmlVersion != null) {
-                        transformer.setOutputProperty(OutputKeys.VERSION, xmlVersion);
-                    }
-                    transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
-                    transformer.setOutputProperty(OutputKeys.STANDALONE, document.getXmlStandalone() ? "yes" : "no");
-                }
-            }
-
-            StringWriter writer = new StringWriter();
-            transformer.transform(new DOMSource(document), new StreamResult(writer));
-
-            String sortedXml = writer.toString();
-            StringBuilder finalXml = new StringBuilder();
-
-            // Handle the XML declaration
-            if (!isBlank(xmlDeclaration.get())) {
-                finalXml.append(xmlDeclaration.get()).append("\n");
+            SorterEvents.SortEvent sortEvent = new SorterEvents.SortEvent();
+            sortEvent.begin();
+            SortOptions sortOptions = withParallelism(options);
+            NodeSorter nodeSorter = new NodeSorter(sortOptions);
+            Document sortedDocument = document;
+            if (options.isPreserveInput()) {
+                sortedDocument = nodeSorter.sortedCopy(document);
+            } else {
+                nodeSorter.sortInPlace(document.getDocumentElement());
             }
+            sortEvent.report(nodeSorter, sortOptions);
 
-            sortedXml = ensureRootOnNewLine(sortedXml, root);
-            finalXml.append(sortedXml);
-            return finalXml.toString();
+            SorterEvents.SerializeEvent serializeEvent = new SorterEvents.SerializeEvent();
+            serializeEvent.begin();
+            String sortedXml = serialize(document, sortedDocument, options);
+            serializeEvent.report(sortedXml, options.getOutputFormat());
+            return sortedXml;
 
+        } catch (CancellationException e) {
+            throw cancelled(deadline, e);
         } catch (TransformerException e) {
-            throw new XmlSortingException("Error transforming sorted XML document to String", e);
+            // Cancellations surface wrapped by the Transformer
+            throw failure("Error transforming sorted XML document to String", e, deadline);
+        } catch (ParserConfigurationException e) {
+            throw new XmlSortingException("Error creating the sorted copy of the XML document", e);
+        } catch (IllegalArgumentException e) {
+            throw new XmlSortingException("Invalid sort options: " + e.getMessage(), e);
         }
     }
 
-    private void sortNode(Node node) {
-        if (node.getNodeType() == Node.ELEMENT_NODE) {
-            Element element = (Element) node;
-
-            // Sort attributes
-            sortAttributes(element);
-
-            // Recursively sort child nodes
-            NodeList childNodes = element.getChildNodes();
-            List<Node> childElements = new ArrayList<>();
-
-            // Keep Non-Element nodes (like comments) right before the next Element node
-            List<Node> nonElementChildren = new ArrayList<>();
-            Map<Node, List<Node>> elementsAfterNonElements = new HashMap<>();
-
-            for (int i = 0; i < childNodes.getLength(); i++) {
-                Node child = childNodes.item(i);
+    /**
+     * Serializes the sorted Document in the output format of the options, checking their deadline while writing.
+     * <p>
+     * With the {@link OutputFormat#CANONICAL} format, the sorted Document is written by a {@link CanonicalXmlWriter}
+     * instead of the Transformer, and never has an XML declaration. Otherwise, the XML declaration extracted from the
+     * input, if any, is reattached, or the one of the input Document is written if it has an encoding.
+     * </p>
+     */
+    private String serialize(Document document, Document sortedDocument, SortOptions options) throws TransformerException {
+        SortDeadline deadline = options.getDeadline();
+        if (options.getOutputFormat() == OutputFormat.CANONICAL) {
+            StringBuilder canonicalXml = new StringBuilder();
+            new CanonicalXmlWriter(canonicalXml, deadline).write(sortedDocument);
+            return canonicalXml.toString();
+        }
 
-                // Ignore text nodes that contain only whitespace
-                if (child.getNodeType() == Node.TEXT_NODE) {
-                    if (child.getTextContent() == null || child.getTextContent().trim().isEmpty()) {
-                        continue;
-                    }
-                }
+        // Transform the Document back to a String
+        Transformer transformer = newTransformer();
+        // Indentation settings
+        boolean indent = options.getOutputFormat() == OutputFormat.INDENTED;
+        transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+        if (indent) {
+            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-number", "4");
+        }
 
-                if (child.getNodeType() != Node.ELEMENT_NODE) {
-                    if (child.getTextContent() != null) {
-                        child.setTextContent(child.getTextContent().trim());
-                    }
-                    nonElementChildren.add(child);
-                } else {
-                    childElements.add(child);
-                    if (!nonElementChildren.isEmpty()) {
-                        elementsAfterNonElements.put(child, nonElementChildren);
-                        nonElementChildren = new ArrayList<>();
-                    }
+        // By default, ignore the declaration tag, unless strong document(s) exist
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        if (isBlank(xmlDeclaration.get())) {
+            // It's not guaranteed that this version is extracted from the input document. It could be the default value.
+            String xmlVersion = document.getXmlVersion();
+            String encoding = document.getXmlEncoding();
+            if (encoding != null) {
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+                if (xmlVersion != null) {
+                    transformer.setOutputProperty(OutputKeys.VERSION, xmlVersion);
                 }
+                transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
+                transformer.setOutputProperty(OutputKeys.STANDALONE, document.getXmlStandalone() ? "yes" : "no");
             }
-            List<Node> bottomNonElementChildren = nonElementChildren.isEmpty() ? Collections.emptyList() : new ArrayList<>(nonElementChildren);
-
-            // Sort child elements of this node
-            childElements.sort(new NodeComparator());
+        }
 
-            // Sort attributes of child elements and recursively sort their children
-            for (Node childElement : childElements) {
-                sortNode(childElement);
-            }
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(sortedDocument), new StreamResult(deadline.checking(writer)));
 
-            // Remove all child nodes
-            while (element.hasChildNodes()) {
-                element.removeChild(element.getFirstChild());
-            }
+        String sortedXml = writer.toString();
+        StringBuilder finalXml = new StringBuilder();
 
-            // Append sorted element nodes
-            for (Node childElement : childElements) {
-                nonElementChildren = getProceedingsOfNode(childElement, elementsAfterNonElements);
-                for (Node childComment : nonElementChildren) {
-                    element.appendChild(childComment);
-                }
-                element.appendChild(childElement);
-            }
-            for (Node childElement : bottomNonElementChildren) {
-                element.appendChild(childElement);
+        // Handle the XML declaration
+        if (!isBlank(xmlDeclaration.get())) {
+            finalXml.append(xmlDeclaration.get());
+            if (indent) {
+                finalXml.append("\n");
             }
         }
-    }
 
-    private void sortAttributes(Element element) {
-        NamedNodeMap attributes = element.getAttributes();
-        if (attributes != null && attributes.getLength() > 1) {
-            List<Attr> attrList = convertAttributesToList(attributes);
-
-            // Remove all attributes
-            for (Attr attr : attrList) {
-                element.removeAttributeNode(attr);
-            }
-
-            // Sort attributes
-            attrList.sort(new AttributeComparator());
-
-            // Add attributes back in sorted order
-            for (Attr attr : attrList) {
-                element.setAttributeNode(attr);
-            }
+        if (indent) {
+            sortedXml = ensureRootOnNewLine(sortedXml, document.getDocumentElement());
         }
+        finalXml.append(sortedXml.trim());
+        return finalXml.toString();
     }
 
     /**
-     * Retrieves the list of non-element nodes (e.g., comments, processing instructions)
-     * that immediately precede the specified element node within its parent element's child nodes.
-     * <p>
-     * The method uses a map where each key is an element node and the corresponding value
-     * is a list of non-element nodes that were originally located directly before that element.
-     * Since the {@code Node} class does not override {@code equals()} and {@code hashCode()},
-     * node identity is based on object reference (memory address).
-     * Therefore, it's crucial that the same {@code Node} instances are used both when
-     * populating the map and when calling this method.
-     * </p>
+     * Creates the Transformer serializing a sorted Document.
      *
-     * @param node                     the element node whose preceding non-element siblings are to be retrieved
-     * @param elementsAfterNonElements a map associating element nodes with their preceding non-element siblings
-     * @return a list of non-element nodes that precede the specified element node,
-     * or an empty list if none are found or if the map is null or empty
+     * @return a new Transformer, with the default output properties
+     * @throws TransformerException if the Transformer cannot be created
      */
-    private List<Node> getProceedingsOfNode(Node node, Map<Node, List<Node>> elementsAfterNonElements) {
-        if (elementsAfterNonElements == null || elementsAfterNonElements.isEmpty()) {
-            return Collections.emptyList();
+    protected Transformer newTransformer() throws TransformerException {
+        return TransformerFactory.newInstance().newTransformer();
+    }
+
+    /**
+     * Reports a failed sort operation as cancelled when its deadline is over, since the failure is then most likely
+     * the cancellation surfacing through a parser or a transformer.
+     */
+    private static XmlSortingException failure(String message, Exception e, SortDeadline deadline) {
+        if (e instanceof SortCancelledException cancelled) {
+            return cancelled;
+        }
+        if (e instanceof CancellationException || deadline.isOver()) {
+            return cancelled(deadline, e);
         }
+        return new XmlSortingException(message, e);
+    }
 
-        log.debug("Element keys: {}", elementsAfterNonElements.keySet().stream().map(NodeConvertor::convertNodeToExpandedString).toList());
-        log.debug("Target element: {}", convertNodeToExpandedString(node));
-        log.debug("Element keys contain the target element: {}", elementsAfterNonElements.containsKey(node));
+    private static SortCancelledException cancelled(SortDeadline deadline, Exception e) {
+        // Sorting may also be cancelled by an interruption, without any deadline
+        String message = deadline.isOver() ? deadline.reason() : e.getMessage();
+        return new SortCancelledException(message, !deadline.isCancelled() && deadline.isExpired(), e);
+    }
 
-        return elementsAfterNonElements.getOrDefault(node, Collections.emptyList());
+    private SortOptions withParallelism(SortOptions options) {
+        return options.getParallelism() == 0 ? options.toBuilder().parallelism(parallelism).build() : options;
+    }
+
+    /**
+     * Tells whether the given options make the content streamed, with only the selected subtrees parsed into a DOM.
+     */
+    static boolean isStreamingPathSelection(SortOptions options) {
+        return !options.getIncludePaths().isEmpty() && options.getOutputFormat() != OutputFormat.CANONICAL;
     }
 
     private String ensureRootOnNewLine(String sortedXml, Node root) {
@@ -272,4 +328,5 @@ public class XmlSorterImpl implements XmlSorter {
         }
         return sortedXml.trim();
     }
+
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Sorts a stream of many small XML documents, writing the sorted documents to an output stream in the same order.
+ * <p>
+ * The documents are read one by one and handed to a pool of workers, which sort them with the {@link XmlSorter}
+ * in parallel, while the sorted documents are written out as soon as all the documents before them are written. At
+ * most a bounded number of documents is in flight at any time, so memory usage does not depend on the length of the
+ * stream, and a slow reader of the output slows down the reading of the input.
+ * </p>
+ * <p>
+ * Every input document produces exactly one output document, so producers can match them by position. A document
+ * that cannot be sorted is logged and written as an empty document. The stream is read and written in UTF-8.
+ * </p>
+ */
+@Log4j2
+@Service
+public class XmlStreamSorter {
+
+    /**
+     * How the documents of a stream are delimited.
+     */
+    public enum Framing {
+
+        /**
+         * Every document is on a single line, terminated by a line feed. The sorted documents are written in the
+         * {@link OutputFormat#COMPACT} format unless another single-line format is requested, with line feeds in
+         * their content written as character references.
+         */
+        NEWLINE,
+
+        /**
+         * Every document is preceded by its length in bytes, as a 4-byte big-endian integer.
+         */
+        LENGTH_PREFIXED
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final XmlSorter xmlSorter;
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final int maxDocumentSize;
+
+    @Autowired
+    public XmlStreamSorter(XmlSorter xmlSorter,
+                           @Value("${sorter.stream.workers:0}") int workerCount,
+                           @Value("${sorter.stream.max-in-flight:0}") int maxInFlight,
+                           @Value("${sorter.stream.max-document-size:10MB}") DataSize maxDocumentSize) {
+        this.xmlSorter = xmlSorter;
+        int threads = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("xml-stream-sorter-", 1).daemon().factory());
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : threads * 4;
+        this.maxDocumentSize = (int) Math.min(maxDocumentSize.toBytes(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sorts every XML document of the given input stream and writes the sorted documents, framed the same way, to the
+     * given output stream, in the same order.
+     *
+     * @param inputStream  the framed XML documents to sort
+     * @param outputStream the destination of the framed sorted XML documents
+     * @param framing      how the documents are delimited, in both streams
+     * @param options      the options tuning how every document is sorted
+     * @return the number of documents sorted
+     * @throws XmlSortingException if the stream cannot be read or written, or is not framed properly
+     */
+    public int sort(InputStream inputStream, OutputStream outputStream, Framing framing, SortOptions options)
+            throws XmlSortingException {
+        SortOptions documentOptions = framing == Framing.NEWLINE && options.getOutputFormat() == OutputFormat.INDENTED
+                ? options.toBuilder().outputFormat(OutputFormat.COMPACT).build()
+                : options;
+        BufferedInputStream input = new BufferedInputStream(inputStream);
+        BufferedOutputStream output = new BufferedOutputStream(outputStream);
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        int count = 0;
+        try {
+            byte[] document;
+            while ((document = readDocument(input, framing)) != null) {
+                inFlight.add(workers.submit(sortTask(document, count, framing, documentOptions)));
+                count++;
+                if (inFlight.size() >= maxInFlight) {
+                    writeDocument(output, inFlight.poll(), framing);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeDocument(output, inFlight.poll(), framing);
+            }
+            output.flush();
+            log.debug("Sorted a stream of {} XML documents", count);
+            return count;
+        } catch (IOException e) {
+            throw new XmlSortingException("Error streaming the XML documents", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XmlSortingException("Interrupted while sorting the XML documents", e);
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+        }
+    }
+
+    private Callable<byte[]> sortTask(byte[] document, int index, Framing framing, SortOptions options) {
+        return () -> {
+            try {
+                String sortedXml = xmlSorter.sort(new String(document, StandardCharsets.UTF_8), options);
+                if (framing == Framing.NEWLINE) {
+                    // Line breaks can only come from character references in a single-line document
+                    sortedXml = sortedXml.replace("\r", "&#13;").replace("\n", "&#10;");
+                }
+                return sortedXml.getBytes(StandardCharsets.UTF_8);
+            } catch (XmlSortingException e) {
+                log.warn("Error sorting XML document #{} of the stream: {}", index, e.getMessage());
+                return EMPTY;
+            }
+        };
+    }
+
+    private byte[] readDocument(InputStream input, Framing framing) throws IOException, XmlSortingException {
+        return framing == Framing.NEWLINE ? readLine(input) : readLengthPrefixed(input);
+    }
+
+    private byte[] readLine(InputStream input) throws IOException, XmlSortingException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (line.size() >= maxDocumentSize) {
+                throw new XmlSortingException("XML document exceeds the maximum size of " + maxDocumentSize + " bytes");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] document = line.toByteArray();
+        if (document.length > 0 && document[document.length - 1] == '\r') {
+            return Arrays.copyOf(document, document.length - 1);
+        }
+        return document;
+    }
+
+    private byte[] readLengthPrefixed(InputStream input) throws IOException, XmlSortingException {
+        byte[] prefix = input.readNBytes(4);
+        if (prefix.length == 0) {
+            return null;
+        }
+        if (prefix.length < 4) {
+            throw new XmlSortingException("Truncated length prefix at the end of the stream");
+        }
+        int length = ((prefix[0] & 0xFF) << 24) | ((prefix[1] & 0xFF) << 16) | ((prefix[2] & 0xFF) << 8) | (prefix[3] & 0xFF);
+        if (length < 0 || length > maxDocumentSize) {
+            throw new XmlSortingException("XML document exceeds the maximum size of " + maxDocumentSize + " bytes");
+        }
+        byte[] document = input.readNBytes(length);
+        if (document.length < length) {
+            throw new XmlSortingException("Truncated XML document at the end of the stream");
+        }
+        return document;
+    }
+
+    private void writeDocument(OutputStream output, Future<byte[]> sortedDocument, Framing framing)
+            throws IOException, InterruptedException, XmlSortingException {
+        byte[] document;
+        try {
+            document = sortedDocument.get();
+        } catch (ExecutionException e) {
+            throw new XmlSortingException("Error sorting an XML document of the stream", e.getCause());
+        }
+        if (framing == Framing.NEWLINE) {
+            output.write(document);
+            output.write('\n');
+        } else {
+            output.write(document.length >>> 24);
+            output.write(document.length >>> 16);
+            output.write(document.length >>> 8);
+            output.write(document.length);
+            output.write(document);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
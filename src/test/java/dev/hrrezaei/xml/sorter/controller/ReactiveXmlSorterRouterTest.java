@@ -0,0 +1,155 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import dev.hrrezaei.xml.sorter.service.ReactiveXmlSorter;
+import dev.hrrezaei.xml.sorter.service.SortDeadline;
+import dev.hrrezaei.xml.sorter.service.SortOptions;
+import dev.hrrezaei.xml.sorter.service.XmlDocumentGenerator;
+import dev.hrrezaei.xml.sorter.service.XmlSorter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static dev.hrrezaei.xml.sorter.service.FileUtil.readInputStream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+public class ReactiveXmlSorterRouterTest {
+
+    @Autowired
+    private ReactiveXmlSorterRouter router;
+
+    @Autowired
+    private ReactiveXmlSorter reactiveXmlSorter;
+
+    @Autowired
+    private ResourceLoader resourceLoader;
+
+    @Autowired
+    private XmlSorter xmlSorter;
+
+    @Autowired
+    private SortDeadlinePolicy sortDeadlinePolicy;
+
+    private WebTestClient webTestClient;
+
+    @BeforeEach
+    void setUp() {
+        webTestClient = WebTestClient.bindToRouterFunction(router.routes()).build();
+    }
+
+    /**
+     * Tests the reactive sortXml endpoint with the same input XML files as the servlet endpoint.
+     *
+     * @param inputFilePath          the path to the input XML file
+     * @param expectedOutputFilePath the path to the expected output XML file
+     * @throws Exception if an error occurs during the test
+     */
+    @ParameterizedTest(name = "Test with input file: {0}")
+    @MethodSource("dev.hrrezaei.xml.sorter.controller.XmlSorterControllerTest#xmlFilesProvider")
+    void testSortXml(String inputFilePath, String expectedOutputFilePath) throws Exception {
+        String input = readInputStream(resourceLoader.getResource(inputFilePath).getInputStream());
+        String expectedOutput = readInputStream(resourceLoader.getResource(expectedOutputFilePath).getInputStream());
+
+        String responseContent = webTestClient.post()
+                .uri("/api/v1/sorter/xml")
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue(input)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertEquals(expectedOutput, responseContent == null ? null : responseContent.trim(),
+                "The sorted XML does not match the expected output.");
+    }
+
+    @Test
+    void testSortXmlFedInSmallBuffers() throws Exception {
+        Resource inputResource = resourceLoader.getResource("classpath:xml/multiLevelNesting-input.xml");
+        Resource expectedResource = resourceLoader.getResource("classpath:xml/multiLevelNesting-output.xml");
+        byte[] input = inputResource.getInputStream().readAllBytes();
+
+        // Feed the parser a few bytes at a time, splitting tags and text across buffers
+        int bufferSize = 7;
+        Flux<DataBuffer> content = Flux.range(0, (input.length + bufferSize - 1) / bufferSize)
+                .map(i -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        Arrays.copyOfRange(input, i * bufferSize, Math.min(input.length, (i + 1) * bufferSize))));
+
+        ReactiveXmlSorter.SortedXml sortedXml = reactiveXmlSorter.sort(content, SortOptions.DEFAULT).block();
+
+        assert sortedXml != null;
+        assertEquals(readInputStream(expectedResource.getInputStream()).trim(),
+                new String(sortedXml.content(), StandardCharsets.UTF_8).trim());
+    }
+
+    @Test
+    void testOversizedBodyOfSmallElementsIsRejected() {
+        ReactiveXmlSorterRouter limitedRouter = new ReactiveXmlSorterRouter(
+                new ReactiveXmlSorter(xmlSorter, DataSize.ofKilobytes(1)), sortDeadlinePolicy);
+        WebTestClient limitedClient = WebTestClient.bindToRouterFunction(limitedRouter.routes()).build();
+
+        // Every element is far below the limit, only the whole body is above it
+        limitedClient.post()
+                .uri("/api/v1/sorter/xml")
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue("<root>" + "<a>1</a>".repeat(200) + "</root>")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+
+        limitedClient.post()
+                .uri("/api/v1/sorter/xml")
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue("<root>" + "<a>1</a>".repeat(100) + "</root>")
+                .exchange()
+                .expectStatus().isOk();
+    }
+
+    @Test
+    void testInvalidXmlIsRejected() {
+        webTestClient.post()
+                .uri("/api/v1/sorter/xml")
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue("<root><unclosed></root>")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    void testSortXmlPastItsDeadline() {
+        webTestClient.post()
+                .uri("/api/v1/sorter/xml")
+                .header(SortDeadlinePolicy.TIMEOUT_HEADER, "1ms")
+                .contentType(MediaType.APPLICATION_XML)
+                .bodyValue(XmlDocumentGenerator.builder().targetSize(1024 * 1024).build().generateString())
+                .exchange()
+                .expectStatus().isEqualTo(503);
+    }
+
+    @Test
+    void testAbandonedSortIsCancelled() {
+        SortDeadline deadline = SortDeadline.unbounded();
+        Flux<DataBuffer> content = Flux.<DataBuffer>just(DefaultDataBufferFactory.sharedInstance.wrap(
+                "<root><b/>".getBytes(StandardCharsets.UTF_8))).concatWith(Flux.never());
+
+        reactiveXmlSorter.sort(content, SortOptions.builder().deadline(deadline).build()).subscribe().dispose();
+
+        assertTrue(deadline.isCancelled());
+    }
+}
@@ -0,0 +1,103 @@
+package dev.hrrezaei.xml.sorter.controller;
+
+import dev.hrrezaei.xml.sorter.service.SortedResultCache;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Tests the sorter endpoint with the sorted result cache, on a real server, so that cached results are sent with
+ * {@code sendfile}, and with {@link MockMvc}, which falls back to streaming them.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "sorter.cache.enabled=true",
+        "sorter.cache.directory=${java.io.tmpdir}/xml-sorter-cache-test-${random.uuid}",
+        "sorter.warmup.enabled=false"})
+@AutoConfigureMockMvc
+public class XmlSorterControllerCacheTest {
+
+    private static final String INPUT = "<root>\n    <b>ß</b>\n    <a>é</a>\n</root>";
+    private static final String SORTED = "<root>\n    <a>é</a>\n    <b>ß</b>\n</root>";
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private SortedResultCache sortedResultCache;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    private HttpResponse<String> sort(String content, String query) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/v1/sorter/xml" + query))
+                .header("Content-Type", "application/xml;charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(content, StandardCharsets.UTF_8))
+                .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testCachedResultsMatchSortedResults() throws Exception {
+        int entries = sortedResultCache.entryCount();
+
+        HttpResponse<String> sorted = sort(INPUT, "");
+        assertEquals(200, sorted.statusCode());
+        assertEquals(SORTED, sorted.body());
+        assertEquals(entries + 1, sortedResultCache.entryCount());
+
+        HttpResponse<String> cached = sort(INPUT, "");
+        assertEquals(200, cached.statusCode());
+        assertEquals(SORTED, cached.body());
+        assertEquals(sorted.headers().firstValue("Content-Type"), cached.headers().firstValue("Content-Type"));
+        assertEquals(entries + 1, sortedResultCache.entryCount());
+    }
+
+    @Test
+    void testResultsAreCachedPerOptions() throws Exception {
+        sort(INPUT, "");
+        int entries = sortedResultCache.entryCount();
+
+        HttpResponse<String> compact = sort(INPUT, "?outputFormat=COMPACT");
+        assertEquals("<root><a>é</a><b>ß</b></root>", compact.body());
+        assertEquals(entries + 1, sortedResultCache.entryCount());
+        assertEquals("<root><a>é</a><b>ß</b></root>", sort(INPUT, "?outputFormat=COMPACT").body());
+    }
+
+    @Test
+    void testInvalidContentIsNotCached() throws Exception {
+        int entries = sortedResultCache.entryCount();
+
+        assertEquals(400, sort("<root><unclosed></root>", "").statusCode());
+        assertEquals(400, sort("<root><unclosed></root>", "").statusCode());
+        assertEquals(entries, sortedResultCache.entryCount());
+    }
+
+    @Test
+    void testCachedResultsAreStreamedWithoutSendfile() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(post("/api/v1/sorter/xml")
+                            .param("excludePath", "/other")
+                            .contentType(MediaType.APPLICATION_XML)
+                            .content(INPUT.getBytes(StandardCharsets.UTF_8)))
+                    .andExpect(status().isOk())
+                    .andExpect(content().bytes(SORTED.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+}
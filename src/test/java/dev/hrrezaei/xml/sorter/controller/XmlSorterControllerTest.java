@@ -1,6 +1,13 @@
 package dev.hrrezaei.xml.sorter.controller;
 
+import dev.hrrezaei.xml.sorter.service.AdaptiveXmlSorter;
+import dev.hrrezaei.xml.sorter.service.SorterWarmUp;
+import dev.hrrezaei.xml.sorter.service.XmlDocumentGenerator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
@@ -16,14 +23,22 @@ import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.util.StreamUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Stream;
 
 import static dev.hrrezaei.xml.sorter.service.FileUtil.readInputStream;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 
@@ -39,12 +54,18 @@ public class XmlSorterControllerTest {
     @Autowired
     private ResourceLoader resourceLoader;
 
+    @Autowired
+    private SorterWarmUp sorterWarmUp;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     /**
      * Provides a stream of input and expected output file paths.
      *
      * @return a Stream of Arguments containing inputFilePath and expectedOutputFilePath
      */
-    static Stream<Arguments> xmlFilesProvider() throws IOException {
+    public static Stream<Arguments> xmlFilesProvider() throws IOException {
         ResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
         // Find all input XML files under src/test/resources/xml/*-input.xml
         Resource[] inputResources = resolver.getResources("classpath:xml/*-input.xml");
@@ -103,4 +124,125 @@ public class XmlSorterControllerTest {
         // Compare the response content with the expected output
         assertEquals(expectedOutput, responseContent, "The sorted XML does not match the expected output.");
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSortXmlStream() throws Exception {
+        String input = "<root><b/><a/></root>\n<?xml version=\"1.0\"?><other y=\"2\" x=\"1\"/>\n";
+
+        MvcResult asyncResult = mockMvc.perform(post("/api/v1/sorter/xml/stream")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content(input.getBytes(StandardCharsets.UTF_8)))
+                .andReturn();
+        String responseContent = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString(StandardCharsets.UTF_8);
+
+        assertEquals("<root><a/><b/></root>\n<?xml version=\"1.0\"?><other x=\"1\" y=\"2\"/>\n", responseContent);
+    }
+
+    @Test
+    void testSortXmlStreamRejectsInvalidPaths() throws Exception {
+        mockMvc.perform(post("/api/v1/sorter/xml/stream")
+                        .param("includePath", "relative/path")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content("<root/>\n"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void testSortXmlStringInCanonicalFormat() throws Exception {
+        String responseContent = mockMvc.perform(post("/api/v1/sorter/xml")
+                        .param("outputFormat", "CANONICAL")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content("<?xml version=\"1.0\"?>\n<root>\n    <b y='2' x='1'/>\n    <a>text</a>\n</root>"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertEquals("<root><a>text</a><b x=\"1\" y=\"2\"></b></root>", responseContent);
+    }
+
+    @Test
+    void testReadyOnlyOnceWarmedUp() throws Exception {
+        assertTrue(sorterWarmUp.getCompletedIterations() > 0);
+        mockMvc.perform(get("/actuator/health/readiness"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("UP"));
+    }
+
+    @Test
+    void testSortXmlStringWithTypedValues() throws Exception {
+        String responseContent = mockMvc.perform(post("/api/v1/sorter/xml")
+                        .param("outputFormat", "COMPACT")
+                        .param("valueType", "INTEGER", "DATE")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content("<root><v id='10'/><v id='9'/><d>2024-02-01</d><d>2023-12-31T23:00:00Z</d></root>"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertEquals("<root><d>2023-12-31T23:00:00Z</d><d>2024-02-01</d><v id=\"9\"/><v id=\"10\"/></root>",
+                responseContent);
+    }
+
+    @Test
+    void testSortXmlStringPastItsDeadline() throws Exception {
+        String xmlContent = XmlDocumentGenerator.builder().targetSize(1024 * 1024).build().generateString();
+        Counter cancelled = meterRegistry.counter(SortDeadlinePolicy.CANCELLED_METRIC, "reason", "deadline", "api", "servlet");
+        double cancelledBefore = cancelled.count();
+
+        mockMvc.perform(post("/api/v1/sorter/xml")
+                        .header(SortDeadlinePolicy.TIMEOUT_HEADER, "1ms")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content(xmlContent))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(content().string("Error sorting XML content: The sort operation exceeded its deadline of 1 ms"));
+        assertEquals(cancelledBefore + 1, cancelled.count());
+
+        MockMultipartFile file = new MockMultipartFile("file", "large.xml", MediaType.APPLICATION_XML_VALUE,
+                xmlContent.getBytes(StandardCharsets.UTF_8));
+        mockMvc.perform(multipart("/api/v1/sorter/xml").file(file).header(SortDeadlinePolicy.TIMEOUT_HEADER, "1ms"))
+                .andExpect(status().isServiceUnavailable());
+        assertEquals(cancelledBefore + 2, cancelled.count());
+    }
+
+    @Test
+    void testSortXmlStringWithinItsDeadline() throws Exception {
+        mockMvc.perform(post("/api/v1/sorter/xml")
+                        .header(SortDeadlinePolicy.TIMEOUT_HEADER, "PT30S")
+                        .param("outputFormat", "COMPACT")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content("<root><b/><a/></root>"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("<root><a/><b/></root>"));
+    }
+
+    @Test
+    void testSortXmlStringRejectsInvalidTimeout() throws Exception {
+        for (String timeout : new String[]{"soon", "0s", "-1s"}) {
+            mockMvc.perform(post("/api/v1/sorter/xml")
+                            .header(SortDeadlinePolicy.TIMEOUT_HEADER, timeout)
+                            .contentType(MediaType.APPLICATION_XML)
+                            .content("<root/>"))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Test
+    void testSortXmlStringRecordsItsEngine() throws Exception {
+        Timer pooled = meterRegistry.timer(AdaptiveXmlSorter.ENGINE_METRIC, "engine", AdaptiveXmlSorter.POOLED);
+        long pooledBefore = pooled.count();
+
+        mockMvc.perform(post("/api/v1/sorter/xml")
+                        .param("outputFormat", "COMPACT")
+                        .contentType(MediaType.APPLICATION_XML)
+                        .content("<root><b/><a/></root>"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("<root><a/><b/></root>"));
+        assertEquals(pooledBefore + 1, pooled.count());
+    }
+}
@@ -0,0 +1,227 @@
+package dev.hrrezaei.xml.sorter.load;
+
+import lombok.extern.log4j.Log4j2;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the sorter endpoint with a closed-loop load: a fixed number of workers, each sending its next request as
+ * soon as the previous one is answered, and records the latency of every request into HDR histograms.
+ * <p>
+ * Every request picks a document from a weighted mix, and is sent either as a raw XML body or as a multipart file
+ * upload, so that both variants of the endpoint see the same documents. Requests sent during the warm-up are not
+ * recorded.
+ * </p>
+ */
+@Log4j2
+public class LoadHarness {
+
+    /**
+     * The longest latency that can be recorded; longer ones are clamped.
+     */
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final String BOUNDARY = "----xml-sorter-load-harness";
+
+    /**
+     * A document of the mix, sent with a probability proportional to its weight.
+     *
+     * @param name    the name of the document, used as the file name of multipart uploads
+     * @param content the XML content of the document
+     * @param weight  the relative weight of the document in the mix
+     */
+    public record Document(String name, byte[] content, double weight) {
+    }
+
+    /**
+     * The kind of request sent to the endpoint.
+     */
+    public enum RequestKind {
+        RAW, MULTIPART
+    }
+
+    private final HttpClient httpClient;
+    private final URI endpoint;
+    private final List<Document> documents;
+    private final double[] cumulativeWeights;
+    private final double multipartRatio;
+    private final Map<RequestKind, Recorder> recorders = new EnumMap<>(RequestKind.class);
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param endpoint       the URI of the sorter endpoint
+     * @param documents      the mix of documents to send
+     * @param multipartRatio the share of requests sent as multipart file uploads, between 0 and 1
+     */
+    public LoadHarness(URI endpoint, List<Document> documents, double multipartRatio) {
+        if (documents.isEmpty()) {
+            throw new IllegalArgumentException("The document mix is empty");
+        }
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.endpoint = endpoint;
+        this.documents = List.copyOf(documents);
+        this.cumulativeWeights = new double[documents.size()];
+        double total = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            total += documents.get(i).weight();
+            cumulativeWeights[i] = total;
+        }
+        this.multipartRatio = multipartRatio;
+        for (RequestKind kind : RequestKind.values()) {
+            recorders.put(kind, new Recorder(MAX_LATENCY_NANOS, 3));
+        }
+    }
+
+    /**
+     * Runs the load, first for the warm-up and then for the measured duration.
+     *
+     * @param concurrency the number of concurrent workers, each with at most one request in flight
+     * @param warmup      how long to send requests before recording them
+     * @param duration    how long to record requests
+     * @return the report of the measured period
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public Report run(int concurrency, Duration warmup, Duration duration) throws InterruptedException {
+        log.info("Warming up {} with {} workers for {}", endpoint, concurrency, warmup);
+        runWorkers(concurrency, warmup);
+        recorders.values().forEach(Recorder::reset);
+        errors.set(0);
+
+        log.info("Measuring {} with {} workers for {}", endpoint, concurrency, duration);
+        long start = System.nanoTime();
+        runWorkers(concurrency, duration);
+        long elapsed = System.nanoTime() - start;
+
+        Map<RequestKind, Histogram> histograms = new EnumMap<>(RequestKind.class);
+        recorders.forEach((kind, recorder) -> histograms.put(kind, recorder.getIntervalHistogram()));
+        return new Report(concurrency, Duration.ofNanos(elapsed), histograms, errors.get());
+    }
+
+    private void runWorkers(int concurrency, Duration duration) throws InterruptedException {
+        long deadline = System.nanoTime() + duration.toNanos();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    sendRequest();
+                }
+            });
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(duration.toMillis() + MAX_LATENCY_NANOS / 1_000_000, TimeUnit.MILLISECONDS)) {
+            workers.shutdownNow();
+        }
+    }
+
+    private void sendRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Document document = pickDocument(random.nextDouble(cumulativeWeights[cumulativeWeights.length - 1]));
+        RequestKind kind = random.nextDouble() < multipartRatio ? RequestKind.MULTIPART : RequestKind.RAW;
+        HttpRequest request = kind == RequestKind.RAW ? rawRequest(document) : multipartRequest(document);
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            long latency = System.nanoTime() - start;
+            recorders.get(kind).recordValue(Math.min(latency, MAX_LATENCY_NANOS));
+            if (response.statusCode() != 200) {
+                errors.incrementAndGet();
+                log.debug("Request for {} failed with status {}", document.name(), response.statusCode());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            log.debug("Request for {} failed", document.name(), e);
+        }
+    }
+
+    private Document pickDocument(double value) {
+        int index = Arrays.binarySearch(cumulativeWeights, value);
+        return documents.get(Math.min(index < 0 ? -index - 1 : index + 1, documents.size() - 1));
+    }
+
+    private HttpRequest rawRequest(Document document) {
+        return HttpRequest.newBuilder(endpoint)
+                .header("Content-Type", "application/xml")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(document.content()))
+                .build();
+    }
+
+    private HttpRequest multipartRequest(Document document) {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                       + "Content-Disposition: form-data; name=\"file\"; filename=\"" + document.name() + "\"\r\n"
+                       + "Content-Type: application/xml\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        return HttpRequest.newBuilder(endpoint)
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(List.of(head, document.content(), tail)))
+                .build();
+    }
+
+    /**
+     * The outcome of the measured period of a run.
+     *
+     * @param concurrency the number of concurrent workers
+     * @param elapsed     the length of the measured period
+     * @param histograms  the latencies, in nanoseconds, per kind of request
+     * @param errors      the number of requests that failed or were not answered with 200 OK
+     */
+    public record Report(int concurrency, Duration elapsed, Map<RequestKind, Histogram> histograms, long errors) {
+
+        /**
+         * @return the latencies of all the requests, whatever their kind
+         */
+        public Histogram total() {
+            Histogram total = new Histogram(MAX_LATENCY_NANOS, 3);
+            histograms.values().forEach(total::add);
+            return total;
+        }
+
+        /**
+         * @return the number of completed requests per second
+         */
+        public double throughput() {
+            return total().getTotalCount() / (elapsed.toNanos() / 1e9);
+        }
+
+        /**
+         * @return a table with the throughput and latency percentiles, per kind of request and in total
+         */
+        public String format() {
+            StringBuilder table = new StringBuilder(String.format("%n%-10s %10s %10s %10s %10s %10s %10s%n",
+                    "requests", "count", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+            histograms.forEach((kind, histogram) -> appendRow(table, kind.name().toLowerCase(), histogram));
+            appendRow(table, "total", total());
+            table.append(String.format("concurrency %d, measured for %s, %d errors%n", concurrency, elapsed, errors));
+            return table.toString();
+        }
+
+        private void appendRow(StringBuilder table, String name, Histogram histogram) {
+            double seconds = elapsed.toNanos() / 1e9;
+            table.append(String.format("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", name,
+                    histogram.getTotalCount(), histogram.getTotalCount() / seconds,
+                    millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue())));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
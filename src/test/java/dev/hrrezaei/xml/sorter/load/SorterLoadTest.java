@@ -0,0 +1,73 @@
+package dev.hrrezaei.xml.sorter.load;
+
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Load test of the sorter endpoint, excluded from the regular build and run with {@code mvn test -Pload-test}.
+ * <p>
+ * The application is started on a random port and driven by a {@link LoadHarness}. The load is tuned with system
+ * properties, passed like {@code -Dload.concurrency=32}:
+ * </p>
+ * <ul>
+ *     <li>{@code load.concurrency}: the number of concurrent clients, 8 by default.</li>
+ *     <li>{@code load.warmup}: the warm-up period, as an ISO-8601 duration like {@code PT10S}, 5 seconds by default.</li>
+ *     <li>{@code load.duration}: the measured period, 20 seconds by default.</li>
+ *     <li>{@code load.documents}: the document mix, as comma-separated resource patterns, each optionally followed
+ *     by {@code =weight}, like {@code classpath:xml/*-input.xml=1,file:/tmp/big/*.xml=3}. Every document matching a
+ *     pattern gets the weight of the pattern. All the test input documents by default.</li>
+ *     <li>{@code load.multipart-ratio}: the share of multipart file uploads among the requests, 0.5 by default.</li>
+ * </ul>
+ */
+@Log4j2
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class SorterLoadTest {
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    void testLoad() throws Exception {
+        int concurrency = Integer.getInteger("load.concurrency", 8);
+        Duration warmup = Duration.parse(System.getProperty("load.warmup", "PT5S"));
+        Duration duration = Duration.parse(System.getProperty("load.duration", "PT20S"));
+        double multipartRatio = Double.parseDouble(System.getProperty("load.multipart-ratio", "0.5"));
+        List<LoadHarness.Document> documents = loadDocuments(System.getProperty("load.documents", "classpath:xml/*-input.xml"));
+
+        LoadHarness harness = new LoadHarness(URI.create("http://localhost:" + port + "/api/v1/sorter/xml"),
+                documents, multipartRatio);
+        LoadHarness.Report report = harness.run(concurrency, warmup, duration);
+        log.info("Load test of {} documents: {}", documents.size(), report.format());
+
+        assertEquals(0, report.errors(), "Some requests of the load test failed");
+    }
+
+    private static List<LoadHarness.Document> loadDocuments(String mix) throws IOException {
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        List<LoadHarness.Document> documents = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] patternAndWeight = entry.trim().split("=", 2);
+            double weight = patternAndWeight.length > 1 ? Double.parseDouble(patternAndWeight[1]) : 1;
+            for (Resource resource : resolver.getResources(patternAndWeight[0])) {
+                documents.add(new LoadHarness.Document(resource.getFilename(),
+                        StreamUtils.copyToByteArray(resource.getInputStream()), weight));
+            }
+        }
+        return documents;
+    }
+}
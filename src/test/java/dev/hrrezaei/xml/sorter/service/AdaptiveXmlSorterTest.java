@@ -0,0 +1,189 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.ApplicationContext;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveXmlSorterTest {
+
+    private static final String SMALL = "<root><b x=\"2\" a=\"1\"/><a/></root>";
+
+    private final XmlSorterImpl xmlSorter = new XmlSorterImpl();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private AdaptiveXmlSorter adaptiveSorter(List<SortEngine> customEngines, int parallelism) {
+        return new AdaptiveXmlSorter(xmlSorter, customEngines, DataSize.ofKilobytes(1), parallelism, meterRegistry);
+    }
+
+    private long sorts(String engine) {
+        return meterRegistry.timer(AdaptiveXmlSorter.ENGINE_METRIC, "engine", engine).count();
+    }
+
+    private static String wideRecords(int count) {
+        StringBuilder xmlContent = new StringBuilder("<records>");
+        for (int i = 0; i < count; i++) {
+            xmlContent.append("<record id=\"").append(count - i).append("\"><b/><a/></record>");
+        }
+        return xmlContent.append("</records>").toString();
+    }
+
+    private static String deepElements(int depth) {
+        return "<e>".repeat(depth) + "<b/><a/>" + "</e>".repeat(depth);
+    }
+
+    @Test
+    void testShapeIsScanned() {
+        String xmlContent = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!-- <ignored a="1"/> -->
+                <root xmlns:p="urn:p">
+                    <p:a k='v>1' l="/>">é</p:a>
+                    <b><![CDATA[<c/><c/>]]><?pi <d/>?></b>
+                    <c><x/><y a="1" b="2"/><z></z></c>
+                </root>""";
+
+        DocumentShape shape = DocumentShape.scan(xmlContent);
+
+        assertEquals(xmlContent.getBytes(StandardCharsets.UTF_8).length, shape.getSize());
+        assertEquals(7, shape.getElementCount());
+        assertEquals(3, shape.getDepth());
+        assertEquals(3, shape.getMaxFanOut());
+        assertEquals(5, shape.getAttributeCount());
+        assertEquals(5.0 / 7, shape.getAttributeDensity(), 1e-9);
+    }
+
+    @Test
+    void testShapeOfMalformedContent() {
+        assertEquals(new DocumentShape(0, 0, 0, 0, 0), DocumentShape.scan(""));
+        assertEquals(2, DocumentShape.scan("<root><a x=\"1").getElementCount());
+        assertEquals(1, DocumentShape.scan("</a></b><root/>").getDepth());
+    }
+
+    @Test
+    void testSmallDocumentsAreSortedByThePooledEngine() throws Exception {
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(), 1);
+
+        assertEquals(xmlSorter.sort(SMALL), sorter.sort(SMALL));
+        assertEquals(xmlSorter.sort(SMALL), sorter.sort(SMALL));
+        assertEquals(2, sorts(AdaptiveXmlSorter.POOLED));
+        assertEquals(SMALL.length(), meterRegistry.summary(AdaptiveXmlSorter.INPUT_SIZE_METRIC,
+                "engine", AdaptiveXmlSorter.POOLED).max());
+    }
+
+    @Test
+    void testDeepDocumentsAreSortedByTheDomEngine() throws Exception {
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(), 1);
+        String xmlContent = deepElements(200);
+
+        assertEquals(xmlSorter.sort(xmlContent), sorter.sort(xmlContent));
+        assertEquals(1, sorts(AdaptiveXmlSorter.DOM));
+        assertEquals(0, sorts(AdaptiveXmlSorter.POOLED));
+    }
+
+    @Test
+    void testWideDocumentsAreSortedByTheShardedEngine() throws Exception {
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(), 4);
+        String xmlContent = wideRecords(100);
+        SortOptions options = SortOptions.builder().minShardSize(10).build();
+
+        assertEquals(AdaptiveXmlSorter.SHARDED, sorter.select(DocumentShape.scan(xmlContent), options).getName());
+        assertEquals(xmlSorter.sort(xmlContent, options.toBuilder().parallelism(1).build()),
+                sorter.sort(xmlContent, options));
+        assertEquals(1, sorts(AdaptiveXmlSorter.SHARDED));
+
+        // Neither when the options set their own parallelism, nor when the lists are too short to be sharded
+        assertEquals(AdaptiveXmlSorter.DOM, sorter.select(DocumentShape.scan(xmlContent),
+                options.toBuilder().parallelism(1).build()).getName());
+        assertEquals(AdaptiveXmlSorter.DOM, sorter.select(DocumentShape.scan(xmlContent),
+                options.toBuilder().minShardSize(51).build()).getName());
+    }
+
+    @Test
+    void testShardedEngineNeedsParallelism() {
+        List<String> engines = adaptiveSorter(List.of(), 1).getEngines().stream().map(SortEngine::getName).toList();
+
+        assertEquals(List.of(AdaptiveXmlSorter.POOLED, AdaptiveXmlSorter.DOM), engines);
+    }
+
+    @Test
+    void testShardedEngineFollowsTheRecordShardingParallelism() {
+        // Converts the settings, like sizes, the way the application does
+        ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+                .withInitializer(context -> context.getBeanFactory()
+                        .setConversionService(ApplicationConversionService.getSharedInstance()))
+                .withBean(XmlSorterImpl.class, XmlSorterImpl::new)
+                .withBean(MeterRegistry.class, SimpleMeterRegistry::new)
+                .withUserConfiguration(AdaptiveXmlSorter.class)
+                .withPropertyValues("sorter.adaptive.enabled=true");
+
+        contextRunner.run(context -> assertFalse(engineNames(context).contains(AdaptiveXmlSorter.SHARDED)));
+        contextRunner.withPropertyValues("sorter.parallelism=1")
+                .run(context -> assertFalse(engineNames(context).contains(AdaptiveXmlSorter.SHARDED)));
+        contextRunner.withPropertyValues("sorter.parallelism=4")
+                .run(context -> assertTrue(engineNames(context).contains(AdaptiveXmlSorter.SHARDED)));
+        // The adaptive setting wins over the record sharding one
+        contextRunner.withPropertyValues("sorter.parallelism=1", "sorter.adaptive.parallelism=4")
+                .run(context -> assertTrue(engineNames(context).contains(AdaptiveXmlSorter.SHARDED)));
+        contextRunner.withPropertyValues("sorter.parallelism=4", "sorter.adaptive.parallelism=1")
+                .run(context -> assertFalse(engineNames(context).contains(AdaptiveXmlSorter.SHARDED)));
+    }
+
+    private static List<String> engineNames(ApplicationContext context) {
+        return context.getBean(AdaptiveXmlSorter.class).getEngines().stream().map(SortEngine::getName).toList();
+    }
+
+    @Test
+    void testWarmUpIsNotRecordedInTheMetrics() {
+        SorterWarmUp warmUp = new SorterWarmUp(xmlSorter, Optional.of(adaptiveSorter(List.of(), 2)), true,
+                "classpath:warmup/*.xml", 1, Duration.ofSeconds(10));
+        warmUp.afterSingletonsInstantiated();
+
+        assertEquals(1, warmUp.getCompletedIterations());
+        assertTrue(meterRegistry.find(AdaptiveXmlSorter.ENGINE_METRIC).timers().isEmpty());
+        assertTrue(meterRegistry.find(AdaptiveXmlSorter.INPUT_SIZE_METRIC).summaries().isEmpty());
+    }
+
+    @Test
+    void testCustomEnginesAreConsultedFirst() throws Exception {
+        SortEngine custom = SortEngine.of("custom", xmlSorter, (shape, options) -> shape.getAttributeDensity() > 0.5);
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(custom), 1);
+
+        sorter.sort(SMALL);
+        sorter.sort("<root><b/><a/></root>");
+
+        assertEquals(1, sorts("custom"));
+        assertEquals(1, sorts(AdaptiveXmlSorter.POOLED));
+    }
+
+    @Test
+    void testPathSelectionIsStreamed() throws Exception {
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(), 1);
+        SortOptions options = SortOptions.builder().includePath("/root").build();
+
+        assertEquals(xmlSorter.sort(SMALL, options), sorter.sort(SMALL, options));
+        assertEquals(xmlSorter.sort(SMALL, options),
+                sorter.sort(new ByteArrayInputStream(SMALL.getBytes(StandardCharsets.UTF_8)), options));
+        assertEquals(2, sorts(AdaptiveXmlSorter.STREAMING));
+        assertEquals(0, sorts(AdaptiveXmlSorter.POOLED));
+    }
+
+    @Test
+    void testDocumentsAreSortedByTheDomEngine() throws Exception {
+        AdaptiveXmlSorter sorter = adaptiveSorter(List.of(), 1);
+
+        assertEquals(xmlSorter.sort(SMALL), sorter.sort(sorter.parseXmlContent(SMALL)));
+        assertEquals(1, sorts(AdaptiveXmlSorter.DOM));
+    }
+}
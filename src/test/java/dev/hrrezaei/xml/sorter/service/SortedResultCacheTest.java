@@ -0,0 +1,187 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SortedResultCacheTest {
+
+    private static final String SORTED = "<root>\n    <a>1</a>\n    <b>2</b>\n</root>";
+
+    @TempDir
+    private Path directory;
+
+    private static String key(String input) {
+        return SortedResultCache.key(input.getBytes(StandardCharsets.UTF_8), SortOptions.DEFAULT);
+    }
+
+    @Test
+    void testCachedResultIsServedFromFile() throws Exception {
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofKilobytes(1));
+        String key = key("<root><b>2</b><a>1</a></root>");
+        assertTrue(cache.get(key).isEmpty());
+
+        cache.put(key, SORTED);
+
+        Optional<Path> cached = cache.get(key);
+        assertTrue(cached.isPresent());
+        assertEquals(SORTED, Files.readString(cached.get()));
+        assertEquals(SORTED.length(), cache.size());
+    }
+
+    @Test
+    void testKeyDependsOnInputAndOptions() {
+        byte[] input = "<root/>".getBytes(StandardCharsets.UTF_8);
+        String key = SortedResultCache.key(input, SortOptions.DEFAULT);
+
+        assertEquals(key, SortedResultCache.key(input.clone(), SortOptions.builder().build()));
+        assertNotEquals(key, SortedResultCache.key("<root />".getBytes(StandardCharsets.UTF_8), SortOptions.DEFAULT));
+        assertNotEquals(key, SortedResultCache.key(input, SortOptions.builder().outputFormat(OutputFormat.COMPACT).build()));
+        assertNotEquals(key, SortedResultCache.key(input, SortOptions.builder().excludePath("/root").build()));
+    }
+
+    @Test
+    void testKeyDependsOnTheOutputVersion() {
+        byte[] input = "<root/>".getBytes(StandardCharsets.UTF_8);
+        // The key of the results cached before the output was versioned
+        String unversionedKey = ContentHashIndex.hash(SortOptions.DEFAULT.toString().getBytes(StandardCharsets.UTF_8),
+                new byte[]{0}, input);
+
+        assertNotEquals(unversionedKey, SortedResultCache.key(input, SortOptions.DEFAULT));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        String content = "x".repeat(400);
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(1000), Duration.ZERO);
+        cache.put("first", content);
+        cache.put("second", content);
+        cache.get("first");
+        cache.put("third", content);
+
+        assertTrue(cache.get("first").isPresent());
+        assertTrue(cache.get("second").isEmpty());
+        assertTrue(cache.get("third").isPresent());
+        assertEquals(800, cache.size());
+        assertFalse(Files.exists(directory.resolve("second.xml")));
+    }
+
+    @Test
+    void testFilesOfEvictedEntriesAreDeletedAfterTheDelay() throws Exception {
+        String content = "x".repeat(400);
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(500), Duration.ofMillis(200));
+        cache.put("first", content);
+        cache.put("second", content);
+
+        assertTrue(cache.get("first").isEmpty());
+        assertEquals(content, Files.readString(directory.resolve("first.xml")));
+
+        Thread.sleep(300);
+        cache.put("third", content);
+        assertFalse(Files.exists(directory.resolve("first.xml")));
+        assertTrue(Files.exists(directory.resolve("second.xml")));
+        assertTrue(cache.get("third").isPresent());
+    }
+
+    @Test
+    void testEvictedEntriesCanStillBeReadOnceLookedUp() throws Exception {
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(1000), Duration.ofMinutes(1));
+        String served = "<served>" + "x".repeat(400) + "</served>";
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Readers look the entry up and read its file a little later, like a response being sent
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                readers.add(executor.submit(() -> {
+                    int reads = 0;
+                    while (running.get()) {
+                        Optional<Path> cached = cache.get("served");
+                        if (cached.isPresent()) {
+                            Thread.sleep(1);
+                            assertEquals(served, Files.readString(cached.get()));
+                            reads++;
+                        }
+                    }
+                    return reads;
+                }));
+            }
+            // The writer keeps caching the entry and evicting it with larger ones
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    cache.put("served", served);
+                    Thread.sleep(1);
+                    cache.put("filler" + i, "x".repeat(800));
+                }
+                return null;
+            });
+
+            writer.get(30, TimeUnit.SECONDS);
+            running.set(false);
+            int reads = 0;
+            for (Future<Integer> reader : readers) {
+                reads += reader.get(30, TimeUnit.SECONDS);
+            }
+            assertTrue(reads > 0);
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testResultsLargerThanTheCacheAreNotCached() throws Exception {
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(100));
+
+        assertTrue(cache.put("large", "x".repeat(101)).isEmpty());
+        assertEquals(0, cache.entryCount());
+    }
+
+    @Test
+    void testEntriesSurviveRestartsInTheirOrderOfUse() throws Exception {
+        String content = "x".repeat(400);
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(1000));
+        cache.put("older", content);
+        cache.put("newer", content);
+        Files.setLastModifiedTime(directory.resolve("older.xml"), FileTime.fromMillis(1_000_000_000_000L));
+        Files.setLastModifiedTime(directory.resolve("newer.xml"), FileTime.fromMillis(2_000_000_000_000L));
+        // A temporary file left by a crash in the middle of a write
+        Files.writeString(directory.resolve("partial123.tmp"), "<root>");
+
+        SortedResultCache restarted = new SortedResultCache(directory, DataSize.ofBytes(1000));
+        assertEquals(2, restarted.entryCount());
+        assertFalse(Files.exists(directory.resolve("partial123.tmp")));
+
+        restarted.put("newest", content);
+        assertTrue(restarted.get("older").isEmpty());
+        assertTrue(restarted.get("newer").isPresent());
+        assertTrue(restarted.get("newest").isPresent());
+    }
+
+    @Test
+    void testCacheShrinksToItsMaximumSizeOnStart() throws Exception {
+        SortedResultCache cache = new SortedResultCache(directory, DataSize.ofBytes(1000));
+        cache.put("first", "x".repeat(400));
+        cache.put("second", "x".repeat(400));
+
+        SortedResultCache smaller = new SortedResultCache(directory, DataSize.ofBytes(500));
+        assertEquals(1, smaller.entryCount());
+        assertTrue(smaller.size() <= 500);
+    }
+}
@@ -0,0 +1,111 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the Flight Recorder events of the sorter, by recording a few sort operations and reading the recording back.
+ */
+public class SorterEventsTest {
+
+    private static final String PARSE = "dev.hrrezaei.xml.sorter.Parse";
+    private static final String SORT = "dev.hrrezaei.xml.sorter.Sort";
+    private static final String SERIALIZE = "dev.hrrezaei.xml.sorter.Serialize";
+    private static final String SLOW_SIBLING_SORT = "dev.hrrezaei.xml.sorter.SlowSiblingSort";
+
+    @TempDir
+    private Path tempDir;
+
+    private final XmlSorter xmlSorter = new XmlSorterImpl();
+
+    private interface SortOperation {
+        void run() throws Exception;
+    }
+
+    private List<RecordedEvent> record(Recording recording, SortOperation operation) throws Exception {
+        recording.start();
+        operation.run();
+        recording.stop();
+        Path file = tempDir.resolve("sort.jfr");
+        recording.dump(file);
+        return RecordingFile.readAllEvents(file);
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals(name)).toList();
+    }
+
+    @Test
+    void testPhasesAreRecorded() throws Exception {
+        // Characters taking 2, 3 and 4 bytes in UTF-8
+        String xmlContent = "<root><b><d>é</d><c>€</c><e/></b><a>😀</a></root>";
+        SortOptions options = SortOptions.builder().outputFormat(OutputFormat.COMPACT).collapseDuplicates(true).build();
+        String[] sortedXml = new String[1];
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(PARSE);
+            recording.enable(SORT);
+            recording.enable(SERIALIZE);
+            events = record(recording, () -> sortedXml[0] = xmlSorter.sort(xmlContent, options));
+        }
+
+        RecordedEvent parse = events(events, PARSE).get(0);
+        assertEquals(xmlContent.getBytes(StandardCharsets.UTF_8).length, parse.getLong("inputSize"));
+
+        RecordedEvent sort = events(events, SORT).get(0);
+        assertEquals(6, sort.getLong("elementCount"));
+        assertEquals(3, sort.getInt("depth"));
+        assertEquals(3, sort.getInt("largestSiblingGroup"));
+        assertEquals(1, sort.getInt("parallelism"));
+        assertTrue(sort.getBoolean("collapseDuplicates"));
+        assertFalse(sort.getBoolean("preserveInput"));
+
+        RecordedEvent serialize = events(events, SERIALIZE).get(0);
+        assertEquals("COMPACT", serialize.getString("outputFormat"));
+        assertEquals(sortedXml[0].getBytes(StandardCharsets.UTF_8).length, serialize.getLong("outputSize"));
+    }
+
+    @Test
+    void testSlowSiblingSortsAreRecorded() throws Exception {
+        String xmlContent = "<root><b/><c/><a x=\"1\"/><a x=\"2\"/></root>";
+        SortOptions options = SortOptions.builder().valueType(ValueType.INTEGER).build();
+
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(SLOW_SIBLING_SORT).withThreshold(Duration.ZERO);
+            events = record(recording, () -> xmlSorter.sort(xmlContent, options));
+        }
+
+        RecordedEvent slowSort = events(events, SLOW_SIBLING_SORT).stream()
+                .filter(event -> event.getString("element").equals("root"))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(4, slowSort.getInt("siblingCount"));
+        assertTrue(slowSort.getBoolean("typedValues"));
+    }
+
+    @Test
+    void testFastSiblingSortsAreNotRecorded() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            // With the default threshold
+            recording.enable(SLOW_SIBLING_SORT);
+            events = record(recording, () -> xmlSorter.sort("<root><b/><a/></root>"));
+        }
+
+        assertTrue(events(events, SLOW_SIBLING_SORT).isEmpty());
+    }
+}
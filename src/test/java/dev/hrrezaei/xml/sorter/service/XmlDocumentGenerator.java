@@ -0,0 +1,159 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic XML documents of a given size and shape, to exercise the sorter on large inputs.
+ * <p>
+ * The document is a root element holding as many record subtrees as needed to reach the target size. Every record
+ * is a tree of the given depth whose elements have between one and {@code fanOut} children, {@code attributeCount}
+ * attributes, and text at the leaves. Element names come from a small vocabulary, so that siblings often share a name
+ * and have to be told apart by their attributes and content, like in real documents.
+ * </p>
+ * <p>
+ * The same settings always generate the same document, byte for byte. Documents are written as they are generated,
+ * so even documents of several gigabytes need no memory.
+ * </p>
+ */
+@Value
+@Builder(toBuilder = true)
+public class XmlDocumentGenerator {
+
+    private static final String[] NAMES = {"item", "entry", "value", "node", "group", "field", "record", "property"};
+    private static final String[] WORDS = {"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"};
+
+    /**
+     * The seed of the pseudo-random choices, so that different seeds generate different documents of the same shape.
+     */
+    @Builder.Default
+    long seed = 42;
+
+    /**
+     * The approximate size of the document in bytes; the last record may exceed it.
+     */
+    @Builder.Default
+    long targetSize = 1024 * 1024;
+
+    /**
+     * The depth of every record subtree, the record element itself included.
+     */
+    @Builder.Default
+    int depth = 4;
+
+    /**
+     * The maximum number of child elements of the non-leaf elements of a record.
+     */
+    @Builder.Default
+    int fanOut = 4;
+
+    /**
+     * The number of attributes of every element of a record.
+     */
+    @Builder.Default
+    int attributeCount = 2;
+
+    /**
+     * The probability, between 0 and 1, for an element to be preceded by a comment.
+     */
+    @Builder.Default
+    double commentDensity = 0.1;
+
+    /**
+     * Generates the document as a {@code String}, which only makes sense for small target sizes.
+     *
+     * @return the generated document
+     */
+    public String generateString() {
+        StringWriter writer = new StringWriter((int) Math.min(targetSize + targetSize / 4, Integer.MAX_VALUE - 8));
+        try {
+            generate(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Generates the document into the given file, in UTF-8.
+     *
+     * @param file the file to write the document to
+     * @throws IOException if the file cannot be written
+     */
+    public void generate(Path file) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8),
+                64 * 1024)) {
+            generate(writer);
+        }
+    }
+
+    /**
+     * Generates the document into the given {@code Writer}.
+     *
+     * @param writer the destination of the document
+     * @throws IOException if the document cannot be written
+     */
+    public void generate(Writer writer) throws IOException {
+        Generation generation = new Generation(writer);
+        generation.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>\n");
+        for (long record = 0; generation.written < targetSize; record++) {
+            generation.writeElement("record", record, 1, "    ");
+        }
+        generation.write("</root>\n");
+    }
+
+    /**
+     * The state of the generation of a single document.
+     */
+    private class Generation {
+
+        private final Writer writer;
+        private final SplittableRandom random = new SplittableRandom(seed);
+        private long written;
+
+        private Generation(Writer writer) {
+            this.writer = writer;
+        }
+
+        private void writeElement(String name, long id, int level, String indent) throws IOException {
+            if (random.nextDouble() < commentDensity) {
+                write(indent + "<!-- " + word() + " " + word() + " -->\n");
+            }
+            StringBuilder tag = new StringBuilder(indent).append('<').append(name);
+            if (level == 1) {
+                tag.append(" id=\"").append(id).append('"');
+            }
+            for (int i = attributeCount - 1; i >= 0; i--) {
+                tag.append(" a").append(i).append("=\"").append(word()).append(random.nextInt(100)).append('"');
+            }
+
+            if (level >= depth) {
+                write(tag.append('>').append(word()).append(' ').append(random.nextInt(1000))
+                        .append("</").append(name).append(">\n").toString());
+                return;
+            }
+            write(tag.append(">\n").toString());
+            int children = 1 + random.nextInt(fanOut);
+            for (int i = 0; i < children; i++) {
+                writeElement(NAMES[random.nextInt(NAMES.length)], i, level + 1, indent + "    ");
+            }
+            write(indent + "</" + name + ">\n");
+        }
+
+        private String word() {
+            return WORDS[random.nextInt(WORDS.length)];
+        }
+
+        private void write(String content) throws IOException {
+            writer.write(content);
+            // The content is ASCII, so characters and bytes match
+            written += content.length();
+        }
+    }
+}
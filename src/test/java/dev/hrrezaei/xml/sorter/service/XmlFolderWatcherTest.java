@@ -0,0 +1,263 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XmlFolderWatcherTest {
+
+    private static final String UNSORTED = "<root>\n    <b>2</b>\n    <a>1</a>\n</root>\n";
+    private static final String SORTED = "<root>\n    <a>1</a>\n    <b>2</b>\n</root>\n";
+
+    @TempDir
+    private Path directory;
+
+    private final List<XmlFolderWatcher> watchers = new ArrayList<>();
+
+    @AfterEach
+    void stopWatchers() {
+        watchers.forEach(XmlFolderWatcher::stop);
+    }
+
+    private XmlFolderWatcher newWatcher() {
+        XmlFolderWatcher watcher = new XmlFolderWatcher(new XmlSorterImpl(), directory, "*.xml", "", 2,
+                Duration.ofMillis(100), OutputFormat.INDENTED);
+        watchers.add(watcher);
+        return watcher;
+    }
+
+    @Test
+    void testSortsEveryFileOfTheTree() throws Exception {
+        Files.createDirectories(directory.resolve("nested/deeper"));
+        Files.writeString(directory.resolve("top.xml"), UNSORTED);
+        Files.writeString(directory.resolve("nested/deeper/spec.xml"), UNSORTED);
+        Files.writeString(directory.resolve("notes.txt"), UNSORTED);
+
+        assertEquals(2, newWatcher().sortAll());
+
+        assertEquals(SORTED, Files.readString(directory.resolve("top.xml")));
+        assertEquals(SORTED, Files.readString(directory.resolve("nested/deeper/spec.xml")));
+        assertEquals(UNSORTED, Files.readString(directory.resolve("notes.txt")));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void testIndexSkipsUnchangedFilesAcrossRestarts() throws Exception {
+        Path unchanged = directory.resolve("unchanged.xml");
+        Path changed = directory.resolve("changed.xml");
+        Files.writeString(unchanged, UNSORTED);
+        Files.writeString(changed, UNSORTED);
+        assertEquals(2, newWatcher().sortAll());
+        assertTrue(Files.exists(directory.resolve(".xml-sorter-index")));
+
+        Files.writeString(changed, "<root><d/><c/></root>");
+        XmlFolderWatcher restarted = newWatcher();
+        assertEquals(2, restarted.getIndex().size());
+        assertEquals(1, restarted.sortAll());
+        assertEquals("<root>\n    <c/>\n    <d/>\n</root>\n", Files.readString(changed));
+        assertEquals(0, restarted.sortAll());
+    }
+
+    @Test
+    void testAlreadySortedFilesAreNotRewritten() throws Exception {
+        Path sorted = directory.resolve("sorted.xml");
+        Files.writeString(sorted, SORTED);
+        FileTime lastModified = FileTime.fromMillis(1_000_000_000_000L);
+        Files.setLastModifiedTime(sorted, lastModified);
+
+        XmlFolderWatcher watcher = newWatcher();
+        assertEquals(0, watcher.sortAll());
+
+        assertEquals(lastModified, Files.getLastModifiedTime(sorted));
+        assertEquals(1, watcher.getIndex().size());
+    }
+
+    @Test
+    void testInvalidFilesAreLeftAsIs() throws Exception {
+        Path broken = directory.resolve("broken.xml");
+        Files.writeString(broken, "<root><unclosed></root>");
+
+        XmlFolderWatcher watcher = newWatcher();
+        assertEquals(0, watcher.sortAll());
+
+        assertEquals("<root><unclosed></root>", Files.readString(broken));
+        assertEquals(0, watcher.getIndex().size());
+    }
+
+    @Test
+    void testIndexIsDiscardedWhenTheOptionsChange() throws Exception {
+        Files.writeString(directory.resolve("spec.xml"), UNSORTED);
+        newWatcher().sortAll();
+
+        XmlFolderWatcher compactWatcher = new XmlFolderWatcher(new XmlSorterImpl(), directory, "*.xml", "", 2,
+                Duration.ofMillis(100), OutputFormat.COMPACT);
+        watchers.add(compactWatcher);
+
+        assertEquals(0, compactWatcher.getIndex().size());
+        assertEquals(1, compactWatcher.sortAll());
+        assertEquals("<root><a>1</a><b>2</b></root>\n", Files.readString(directory.resolve("spec.xml")));
+    }
+
+    @Test
+    void testIndexIsDiscardedWhenTheOutputVersionChanges() throws Exception {
+        Path spec = directory.resolve("spec.xml");
+        Files.writeString(spec, UNSORTED);
+        // An index recorded before the output was versioned, listing the file as sorted
+        String unversionedFingerprint =
+                ContentHashIndex.hash(SortOptions.builder().build().toString().getBytes(StandardCharsets.UTF_8));
+        Files.writeString(directory.resolve(".xml-sorter-index"), "# options " + unversionedFingerprint + "\n"
+                + ContentHashIndex.hash(Files.readAllBytes(spec)) + " spec.xml\n");
+
+        XmlFolderWatcher watcher = newWatcher();
+        assertEquals(0, watcher.getIndex().size());
+        assertEquals(1, watcher.sortAll());
+        assertEquals(SORTED, Files.readString(spec));
+    }
+
+    @Test
+    void testSortsFilesChangedWhileWatching() throws Exception {
+        XmlFolderWatcher watcher = newWatcher();
+        watcher.start();
+        assertTrue(watcher.isRunning());
+
+        Path created = directory.resolve("created.xml");
+        Files.writeString(created, UNSORTED);
+        Path nested = Files.createDirectories(directory.resolve("new/directory")).resolve("nested.xml");
+        Files.writeString(nested, UNSORTED);
+
+        awaitContent(created, SORTED);
+        awaitContent(nested, SORTED);
+
+        Files.writeString(created, "<root><z/><y/></root>");
+        awaitContent(created, "<root>\n    <y/>\n    <z/>\n</root>\n");
+
+        watcher.stop();
+        assertFalse(watcher.isRunning());
+    }
+
+    @Test
+    void testFilesAreRewrittenInTheirOwnEncoding() throws Exception {
+        Path latin1 = directory.resolve("latin1.xml");
+        String declaration = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>";
+        Files.writeString(latin1, declaration + "\n<root>\n    <b>café</b>\n    <a>1</a>\n</root>\n",
+                StandardCharsets.ISO_8859_1);
+        Path utf16 = directory.resolve("utf16.xml");
+        byte[] utf16Content = "<root><b>ü</b><a/></root>".getBytes(StandardCharsets.UTF_16);
+        Files.write(utf16, utf16Content);
+
+        assertEquals(2, newWatcher().sortAll());
+
+        // One byte per character in ISO-8859-1, é included
+        String expectedLatin1 = declaration + "\n<root>\n    <a>1</a>\n    <b>café</b>\n</root>\n";
+        byte[] sortedLatin1 = Files.readAllBytes(latin1);
+        assertEquals(expectedLatin1, new String(sortedLatin1, StandardCharsets.ISO_8859_1));
+        assertEquals(expectedLatin1.length(), sortedLatin1.length);
+        assertEquals(expectedLatin1.indexOf('é'), indexOf(sortedLatin1, (byte) 0xE9));
+        assertEquals("<root>\n    <a/>\n    <b>ü</b>\n</root>\n",
+                new String(Files.readAllBytes(utf16), StandardCharsets.UTF_16));
+    }
+
+    @Test
+    void testCanonicalFilesAreWrittenInUtf8() throws Exception {
+        Path latin1 = directory.resolve("latin1.xml");
+        Files.writeString(latin1, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<root><b>café</b><a>1</a></root>",
+                StandardCharsets.ISO_8859_1);
+        XmlFolderWatcher watcher = new XmlFolderWatcher(new XmlSorterImpl(), directory, "*.xml", "", 2,
+                Duration.ofMillis(100), OutputFormat.CANONICAL);
+        watchers.add(watcher);
+
+        assertEquals(1, watcher.sortAll());
+
+        // Without a declaration, the file must be read as UTF-8
+        assertArrayEquals("<root><a>1</a><b>café</b></root>\n".getBytes(StandardCharsets.UTF_8),
+                Files.readAllBytes(latin1));
+        assertEquals(0, watcher.sortAll());
+    }
+
+    @Test
+    void testFilesThatCannotBeRoundTrippedAreLeftUntouched() throws Exception {
+        // Not UTF-8, despite the declaration
+        Path misdeclared = directory.resolve("misdeclared.xml");
+        byte[] misdeclaredContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><root><b>café</b><a/></root>"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(misdeclared, misdeclaredContent);
+        // The sorted content holds the character of the reference, which ASCII cannot encode
+        Path ascii = directory.resolve("ascii.xml");
+        byte[] asciiContent = "<?xml version=\"1.0\" encoding=\"US-ASCII\"?><root><b>caf&#233;</b><a/></root>"
+                .getBytes(StandardCharsets.US_ASCII);
+        Files.write(ascii, asciiContent);
+
+        XmlFolderWatcher watcher = newWatcher();
+        assertEquals(0, watcher.sortAll());
+
+        assertArrayEquals(misdeclaredContent, Files.readAllBytes(misdeclared));
+        assertArrayEquals(asciiContent, Files.readAllBytes(ascii));
+        assertEquals(0, watcher.getIndex().size());
+    }
+
+    @Test
+    void testFilesChangedWhileBeingSortedAreNotOverwritten() throws Exception {
+        Path edited = directory.resolve("edited.xml");
+        Files.writeString(edited, UNSORTED);
+        String edit = "<root><d/><c/></root>\n";
+        // An editor saves the file after the watcher has read it, but before the sorted content is written
+        XmlSorter editingSorter = new XmlSorterImpl() {
+            @Override
+            public String sort(String xmlContent, SortOptions options) throws XmlSortingException {
+                try {
+                    Files.writeString(edited, edit);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return super.sort(xmlContent, options);
+            }
+        };
+        XmlFolderWatcher watcher = new XmlFolderWatcher(editingSorter, directory, "*.xml", "", 2,
+                Duration.ofMillis(100), OutputFormat.INDENTED);
+        watchers.add(watcher);
+
+        assertEquals(0, watcher.sortAll());
+
+        assertEquals(edit, Files.readString(edited));
+        assertEquals(0, watcher.getIndex().size());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    private static int indexOf(byte[] content, byte value) {
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void awaitContent(Path file, String expected) throws Exception {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (System.nanoTime() < deadline) {
+            if (Files.exists(file) && expected.equals(Files.readString(file))) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(expected, Files.readString(file));
+    }
+}
@@ -0,0 +1,167 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Scaling regression suite of the {@link XmlSorterImpl}, on synthetic documents of several shapes.
+ * <p>
+ * Every shape is sorted at a base size and at 4 times that size, and each run must stay within a time ceiling and a
+ * peak heap ceiling proportional to the size of the document. To catch quadratic behaviors, which may still fit the
+ * ceilings at small sizes, the larger document must also not take more than {@value #MAX_GROWTH} times as long as
+ * the base one, while linear or linearithmic sorting takes about 4 times as long.
+ * </p>
+ * <p>
+ * The suite runs in its own JVM, with a small young generation and the serial collector, so that the peak heap
+ * usage reflects the data kept alive rather than how much garbage the collector lets pile up. The sizes and ceilings
+ * can be tuned with system properties, like {@code mvn test -Dscaling.base-size=64MB -Dscaling.max-heap=16g}:
+ * </p>
+ * <ul>
+ *     <li>{@code scaling.base-size}: the base size of the documents, 512KB by default.</li>
+ *     <li>{@code scaling.millis-per-mb}: the time ceiling per MB of document, 2000 by default.</li>
+ *     <li>{@code scaling.heap-per-byte}: the peak heap ceiling per byte of document, beyond the young generation,
+ *     64 by default.</li>
+ * </ul>
+ * <p>
+ * The suite also logs the throughput of sorting the records of a flat document in parallel, from 1 to
+ * {@code scaling.max-parallelism} shards, twice the available processors by default.
+ * </p>
+ */
+@Log4j2
+@Tag("scaling")
+public class XmlSorterScalingTest {
+
+    private static final int GROWTH = 4;
+    private static final double MAX_GROWTH = 10;
+    private static final long SIZE = DataSize.parse(System.getProperty("scaling.base-size", "512KB")).toBytes();
+    private static final long MILLIS_PER_MB = Long.getLong("scaling.millis-per-mb", 2000);
+    private static final long HEAP_PER_BYTE = Long.getLong("scaling.heap-per-byte", 64);
+    private static final int MAX_PARALLELISM = Integer.getInteger("scaling.max-parallelism",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    @TempDir
+    private static Path tempDir;
+
+    private final XmlSorter xmlSorter = new XmlSorterImpl();
+
+    static Stream<Arguments> shapes() {
+        XmlDocumentGenerator regular = XmlDocumentGenerator.builder().build();
+        return Stream.of(
+                Arguments.of("regular", regular),
+                Arguments.of("wide", regular.toBuilder().depth(2).fanOut(64).build()),
+                Arguments.of("deep", regular.toBuilder().depth(14).fanOut(2).build()),
+                Arguments.of("attribute-heavy", regular.toBuilder().attributeCount(16).build()),
+                Arguments.of("comment-heavy", regular.toBuilder().commentDensity(0.9).build()));
+    }
+
+    @ParameterizedTest(name = "Scaling of {0} documents")
+    @MethodSource("shapes")
+    void testScaling(String shape, XmlDocumentGenerator generator) throws Exception {
+        long baseMillis = sortWithinCeilings(shape, generator.toBuilder().targetSize(SIZE).build());
+        long grownMillis = sortWithinCeilings(shape, generator.toBuilder().targetSize(SIZE * GROWTH).build());
+
+        // Small durations are dominated by noise, so only compare from 100 ms on
+        double growth = (double) grownMillis / Math.max(baseMillis, 100);
+        log.info("Sorting {} documents {} times as large took {} times as long", shape, GROWTH, String.format("%.1f", growth));
+        assertTrue(growth <= MAX_GROWTH, "Sorting " + shape + " documents " + GROWTH + " times as large took " + growth
+                                         + " times as long, which hints at a quadratic behavior");
+    }
+
+    @Test
+    void testShardedSortScaling() throws Exception {
+        File file = tempDir.resolve("records.xml").toFile();
+        XmlDocumentGenerator.builder().targetSize(SIZE * GROWTH).build().generate(file.toPath());
+        SortOptions sequential = SortOptions.builder().parallelism(1).minShardSize(256).build();
+        String expected = xmlSorter.sort(file, sequential);
+
+        for (int parallelism = 1; parallelism <= MAX_PARALLELISM; parallelism *= 2) {
+            SortOptions sharded = sequential.toBuilder().parallelism(parallelism).build();
+            long millis = Long.MAX_VALUE;
+            for (int run = 0; run < 2; run++) {
+                long start = System.nanoTime();
+                assertEquals(expected, xmlSorter.sort(file, sharded), "Sorting in " + parallelism + " shards");
+                millis = Math.min(millis, (System.nanoTime() - start) / 1_000_000);
+            }
+            log.info("Sorted records of {} bytes in up to {} shards on {} processors in {} ms, {} MB/s",
+                    file.length(), parallelism, Runtime.getRuntime().availableProcessors(), millis,
+                    String.format("%.1f", file.length() / 1024.0 / 1024.0 / Math.max(millis, 1) * 1000));
+        }
+    }
+
+    /**
+     * Sorts the generated document twice, asserting the ceilings on the fastest run.
+     *
+     * @return the duration of the fastest run, in milliseconds
+     */
+    private long sortWithinCeilings(String shape, XmlDocumentGenerator generator) throws Exception {
+        File file = tempDir.resolve(shape + "-" + generator.getTargetSize() + ".xml").toFile();
+        generator.generate(file.toPath());
+        long size = file.length();
+
+        long millis = Long.MAX_VALUE;
+        long peakHeap = Long.MAX_VALUE;
+        for (int run = 0; run < 2; run++) {
+            long baseline = resetHeapPeaks();
+            long start = System.nanoTime();
+            xmlSorter.sort(file);
+            millis = Math.min(millis, (System.nanoTime() - start) / 1_000_000);
+            peakHeap = Math.min(peakHeap, heapPeaks() - baseline);
+        }
+        log.info("Sorted {} document of {} bytes in {} ms with a peak heap of {} MB",
+                shape, size, millis, peakHeap / (1024 * 1024));
+
+        long maxMillis = Math.max(1000, MILLIS_PER_MB * size / (1024 * 1024));
+        assertTrue(millis <= maxMillis, "Sorting " + shape + " document of " + size + " bytes took " + millis
+                                        + " ms, over the ceiling of " + maxMillis + " ms");
+        long maxPeakHeap = youngGenerationSize() + HEAP_PER_BYTE * size;
+        assertTrue(peakHeap <= maxPeakHeap, "Sorting " + shape + " document of " + size + " bytes peaked at "
+                                            + peakHeap + " bytes of heap, over the ceiling of " + maxPeakHeap);
+        return millis;
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .toList();
+    }
+
+    /**
+     * Collects the garbage and resets the peak usage of the heap pools.
+     *
+     * @return the heap usage before the measured run
+     */
+    private static long resetHeapPeaks() {
+        System.gc();
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+        return heapPools().stream().mapToLong(pool -> pool.getUsage().getUsed()).sum();
+    }
+
+    private static long heapPeaks() {
+        return heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static long youngGenerationSize() {
+        // The old generation is the only heap pool that is not collected by minor collections
+        return heapPools().stream()
+                .filter(pool -> !pool.getName().contains("Old") && !pool.getName().contains("Tenured"))
+                .mapToLong(pool -> Math.max(pool.getUsage().getCommitted(), pool.getUsage().getMax()))
+                .sum();
+    }
+}
@@ -1,5 +1,6 @@
 package dev.hrrezaei.xml.sorter.service;
 
+import dev.hrrezaei.xml.sorter.exception.SortCancelledException;
 import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
 import lombok.extern.log4j.Log4j2;
 import org.junit.jupiter.api.Test;
@@ -7,12 +8,27 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 import static dev.hrrezaei.xml.sorter.service.FileUtil.readInputStream;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Log4j2
 @SpringBootTest
@@ -25,6 +41,10 @@ public class XmlSorterTest {
     private ResourceLoader resourceLoader;
 
     private void testFile(String inputFileLocation, String expectedFileLocation) throws Exception {
+        testFile(inputFileLocation, expectedFileLocation, SortOptions.DEFAULT);
+    }
+
+    private void testFile(String inputFileLocation, String expectedFileLocation, SortOptions options) throws Exception {
         // Load the input XML file
         Resource inputResource = resourceLoader.getResource(inputFileLocation);
 
@@ -33,7 +53,7 @@ public class XmlSorterTest {
         String expectedXml = readInputStream(new FileInputStream(expectedResource.getFile()));
 
         // Perform the sorting
-        String sortedXml = xmlSorter.sort(inputResource.getFile());
+        String sortedXml = xmlSorter.sort(inputResource.getFile(), options);
         log.info("Sorting the file [{}] has resulted in \n{}", inputFileLocation, sortedXml);
 
         // Assert that the sorted XML matches the expected output
@@ -42,7 +62,7 @@ public class XmlSorterTest {
 
         if (!inputFileLocation.equals(expectedFileLocation)) {
             // The expected file should match itself, too.
-            testFile(expectedFileLocation, expectedFileLocation);
+            testFile(expectedFileLocation, expectedFileLocation, options);
         }
     }
 
@@ -159,4 +179,334 @@ public class XmlSorterTest {
         testFile("classpath:xml/emptyElements-input.xml", "classpath:xml/emptyElements-output.xml");
     }
 
-}
\ No newline at end of file
+    @Test
+    void testIdenticalSiblings() throws Exception {
+        testFile("classpath:xml/identicalSiblings-input.xml", "classpath:xml/identicalSiblings-output.xml");
+    }
+
+    @Test
+    void testCollapseDuplicates() throws Exception {
+        SortOptions collapseDuplicates = SortOptions.builder().collapseDuplicates(true).build();
+        testFile("classpath:xml/identicalSiblings-input.xml", "classpath:xml/identicalSiblings-collapsed.xml", collapseDuplicates);
+        testFile("classpath:xml/identicalSiblings-input.xml", "classpath:xml/identicalSiblings-collapsed.xml",
+                collapseDuplicates.toBuilder().preserveInput(true).build());
+    }
+
+    /**
+     * A hasher whose hashes all collide, standing for different siblings whose 64-bit hashes happen to be equal.
+     */
+    private static class CollidingHasher extends SubtreeHasher {
+        @Override
+        public long hash(Node node) {
+            return 42;
+        }
+    }
+
+    @Test
+    void testCollidingHashesKeepSiblingsApart() throws Exception {
+        Document document = xmlSorter.parseXmlContent(
+                "<root><b>2</b><b>1</b><b><!--x--><c/></b><b><c/><!--x--></b><b>1</b></root>");
+        List<Node> siblings = NodeConvertor.convertNodesToList(document.getDocumentElement().getChildNodes());
+        NodeComparator comparator = new NodeComparator(new CollidingHasher());
+
+        assertTrue(comparator.compare(siblings.get(0), siblings.get(1)) > 0);
+        assertEquals(0, comparator.compare(siblings.get(1), siblings.get(4)));
+        int placementComparison = comparator.compare(siblings.get(2), siblings.get(3));
+        assertTrue(placementComparison != 0);
+        assertEquals(-Integer.signum(placementComparison),
+                Integer.signum(comparator.compare(siblings.get(3), siblings.get(2))));
+
+        // The order does not depend on the input order
+        List<Node> sorted = new ArrayList<>(siblings);
+        sorted.sort(comparator);
+        List<Node> reversed = new ArrayList<>(siblings.reversed());
+        reversed.sort(comparator);
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(0, comparator.compare(sorted.get(i), reversed.get(i)));
+        }
+    }
+
+    @Test
+    void testIdenticalSubtreesAreConfirmedOnce() throws Exception {
+        Document document = xmlSorter.parseXmlContent(
+                "<root><r><a>1</a><b/></r><r><b/><a>1</a></r><r><a>2</a><b/></r></root>");
+        List<Node> siblings = NodeConvertor.convertNodesToList(document.getDocumentElement().getChildNodes());
+        for (SubtreeHasher hasher : List.of(new SubtreeHasher(), new CollidingHasher())) {
+            NodeComparator comparator = new NodeComparator(hasher);
+
+            assertEquals(0, comparator.compare(siblings.get(0), siblings.get(1)));
+            assertSame(hasher.representative(siblings.get(0)), hasher.representative(siblings.get(1)));
+            assertNotSame(hasher.representative(siblings.get(0)), hasher.representative(siblings.get(2)));
+            assertTrue(comparator.compare(siblings.get(0), siblings.get(2)) < 0);
+        }
+
+        // Once confirmed, identical subtrees are not walked again
+        SubtreeHasher hasher = new SubtreeHasher();
+        assertTrue(hasher.isSameSubtree(siblings.get(0), siblings.get(1)));
+        siblings.get(1).removeChild(siblings.get(1).getFirstChild());
+        assertTrue(hasher.isSameSubtree(siblings.get(0), siblings.get(1)));
+    }
+
+    @Test
+    void testPathSelection() throws Exception {
+        testFile("classpath:xml/pathSelection-input.xml", "classpath:xml/pathSelection-output.xml");
+    }
+
+    @Test
+    void testIncludeAndExcludePaths() throws Exception {
+        SortOptions selectedPaths = SortOptions.builder()
+                .includePath("/config/beans")
+                .excludePath("/config/beans/nested")
+                .build();
+        testFile("classpath:xml/pathSelection-input.xml", "classpath:xml/pathSelection-selected.xml", selectedPaths);
+
+        // Sorting from a String streams the unselected regions, too
+        Resource inputResource = resourceLoader.getResource("classpath:xml/pathSelection-input.xml");
+        Resource expectedResource = resourceLoader.getResource("classpath:xml/pathSelection-selected.xml");
+        assertEquals(readInputStream(expectedResource.getInputStream()).trim(),
+                xmlSorter.sort(readInputStream(inputResource.getInputStream()), selectedPaths));
+    }
+
+    @Test
+    void testIncludingRootMatchesWholeDocumentSorting() throws Exception {
+        SortOptions rootPath = SortOptions.builder().includePath("/*").build();
+        for (Resource inputResource : new PathMatchingResourcePatternResolver().getResources("classpath:xml/*-input.xml")) {
+            String xmlContent = readInputStream(inputResource.getInputStream());
+            assertEquals(xmlSorter.sort(xmlContent), xmlSorter.sort(xmlContent, rootPath),
+                    "Sorting the root path as a stream differs for " + inputResource.getFilename());
+        }
+    }
+
+    @Test
+    void testPreserveInputMatchesInPlaceSorting() throws Exception {
+        SortOptions preserveInput = SortOptions.builder().preserveInput(true).build();
+        for (Resource inputResource : new PathMatchingResourcePatternResolver().getResources("classpath:xml/*-input.xml")) {
+            String xmlContent = readInputStream(inputResource.getInputStream());
+            assertEquals(xmlSorter.sort(xmlContent), xmlSorter.sort(xmlContent, preserveInput),
+                    "Sorting without mutating the input differs for " + inputResource.getFilename());
+        }
+    }
+
+    @Test
+    void testPreserveInputLeavesDocumentUntouched() throws Exception {
+        SortOptions preserveInput = SortOptions.builder().preserveInput(true).build();
+        Resource inputResource = resourceLoader.getResource("classpath:xml/attributesAndNestedNodes-input.xml");
+        Document document = xmlSorter.parseXmlContent(readInputStream(inputResource.getInputStream()));
+        Document original = (Document) document.cloneNode(true);
+
+        String firstSort = xmlSorter.sort(document, preserveInput);
+        String secondSort = xmlSorter.sort(document, preserveInput);
+
+        assertTrue(original.isEqualNode(document), "The input document has been modified by sorting");
+        assertEquals(firstSort, secondSort, "Sorting the same document twice should produce the same output");
+    }
+
+    @Test
+    void testCompactOutputKeepsTheSortedContent() throws Exception {
+        SortOptions compact = SortOptions.builder().outputFormat(OutputFormat.COMPACT).build();
+        SortOptions compactRootPath = compact.toBuilder().includePath("/*").build();
+        for (Resource inputResource : new PathMatchingResourcePatternResolver().getResources("classpath:xml/*-input.xml")) {
+            String xmlContent = readInputStream(inputResource.getInputStream());
+            String indented = xmlSorter.sort(xmlContent);
+            // Indenting the compact output again should restore the regular output
+            assertEquals(indented, xmlSorter.sort(xmlSorter.sort(xmlContent, compact)),
+                    "Compact output lost content of " + inputResource.getFilename());
+            assertEquals(indented, xmlSorter.sort(xmlSorter.sort(xmlContent, compactRootPath)),
+                    "Compact streamed output lost content of " + inputResource.getFilename());
+        }
+    }
+
+    @Test
+    void testCompactOutputHasNoAddedWhitespace() throws Exception {
+        String xmlContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>\n    <b y=\"2\" x=\"1\">text</b>\n    <a/>\n</root>";
+        SortOptions compact = SortOptions.builder().outputFormat(OutputFormat.COMPACT).build();
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root><a/><b x=\"1\" y=\"2\">text</b></root>",
+                xmlSorter.sort(xmlContent, compact));
+    }
+
+    @Test
+    void testCanonicalOutputKeepsTheSortedContent() throws Exception {
+        SortOptions canonical = SortOptions.builder().outputFormat(OutputFormat.CANONICAL).build();
+        for (Resource inputResource : new PathMatchingResourcePatternResolver().getResources("classpath:xml/*-input.xml")) {
+            String xmlContent = readInputStream(inputResource.getInputStream());
+            String canonicalXml = xmlSorter.sort(xmlContent, canonical);
+            assertEquals(canonicalXml, xmlSorter.sort(canonicalXml, canonical),
+                    "Canonical output is not stable for " + inputResource.getFilename());
+            // Whitespace added by the indentation is insignificant, so it should not matter to the canonical form
+            assertEquals(canonicalXml, xmlSorter.sort(xmlSorter.sort(xmlContent), canonical),
+                    "Canonical output lost content of " + inputResource.getFilename());
+        }
+    }
+
+    @Test
+    void testCanonicalOutputIsNormalized() throws Exception {
+        String xmlContent = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                            + "<!-- header -->\n"
+                            + "<p:root xmlns:p='urn:p' xmlns='urn:d' b='&quot;2&quot;' a='x&#10;y'>\n"
+                            + "    <p:item xmlns:p='urn:p' xmlns='urn:d'><![CDATA[a < b & c > d]]></p:item>\n"
+                            + "    <empty/>\n"
+                            + "</p:root>";
+        SortOptions canonical = SortOptions.builder().outputFormat(OutputFormat.CANONICAL).build();
+        assertEquals("<!-- header -->\n"
+                     + "<p:root xmlns=\"urn:d\" xmlns:p=\"urn:p\" a=\"x&#xA;y\" b=\"&quot;2&quot;\">"
+                     + "<empty></empty><p:item>a &lt; b &amp; c &gt; d</p:item></p:root>",
+                xmlSorter.sort(xmlContent, canonical));
+    }
+
+    @Test
+    void testTypedComparisonSortsIntegersNumerically() throws Exception {
+        String xmlContent = "<root><item id=\"10\"/><item id=\"9\"/><item id=\"-1\"/><item id=\"+2\"/></root>";
+        SortOptions compact = SortOptions.builder().outputFormat(OutputFormat.COMPACT).build();
+        assertEquals("<root><item id=\"+2\"/><item id=\"-1\"/><item id=\"10\"/><item id=\"9\"/></root>",
+                xmlSorter.sort(xmlContent, compact));
+        assertEquals("<root><item id=\"-1\"/><item id=\"+2\"/><item id=\"9\"/><item id=\"10\"/></root>",
+                xmlSorter.sort(xmlContent, compact.toBuilder().valueType(ValueType.INTEGER).build()));
+    }
+
+    @Test
+    void testTypedComparisonSortsNumbersExactly() throws Exception {
+        // Each pair has the same double value
+        String integers = "<root><v>100000000000000000000</v><v>99999999999999999999</v>"
+                          + "<v>-99999999999999999999</v><v>-100000000000000000000</v></root>";
+        SortOptions compact = SortOptions.builder().outputFormat(OutputFormat.COMPACT).build();
+        assertEquals("<root><v>-100000000000000000000</v><v>-99999999999999999999</v>"
+                     + "<v>99999999999999999999</v><v>100000000000000000000</v></root>",
+                xmlSorter.sort(integers, compact.toBuilder().valueType(ValueType.INTEGER).build()));
+
+        String decimals = "<root><v>1.00000000000000005</v><v>100000000000000001e-17</v></root>";
+        assertEquals("<root><v>100000000000000001e-17</v><v>1.00000000000000005</v></root>",
+                xmlSorter.sort(decimals, compact.toBuilder().valueType(ValueType.DECIMAL).build()));
+    }
+
+    @Test
+    void testTypedComparisonSortsDecimalsAndDates() throws Exception {
+        String decimals = "<root><v>1e1</v><v>1.5</v><v>.25</v><v>2</v></root>";
+        SortOptions typed = SortOptions.builder()
+                .outputFormat(OutputFormat.COMPACT)
+                .valueType(ValueType.DECIMAL)
+                .valueType(ValueType.DATE)
+                .build();
+        assertEquals("<root><v>.25</v><v>1.5</v><v>2</v><v>1e1</v></root>", xmlSorter.sort(decimals, typed));
+
+        String dates = "<root><d at=\"2024-01-31T09:00:00Z\"/><d at=\"2024-01-31T10:00:00+02:00\"/>"
+                       + "<d at=\"2023-12-31\"/><d at=\"2024-01-31T08:30:00\"/></root>";
+        assertEquals("<root><d at=\"2023-12-31\"/><d at=\"2024-01-31T10:00:00+02:00\"/>"
+                     + "<d at=\"2024-01-31T08:30:00\"/><d at=\"2024-01-31T09:00:00Z\"/></root>",
+                xmlSorter.sort(dates, typed));
+    }
+
+    @Test
+    void testTypedComparisonOrdersNumbersBeforeDatesBeforeStrings() throws Exception {
+        String xmlContent = "<root><v>abc</v><v>2024-01-01</v><v>10</v><v>9.5</v><v></v></root>";
+        SortOptions typed = SortOptions.builder()
+                .outputFormat(OutputFormat.COMPACT)
+                .valueTypes(EnumSet.allOf(ValueType.class))
+                .build();
+        assertEquals("<root><v>9.5</v><v>10</v><v>2024-01-01</v><v/><v>abc</v></root>", xmlSorter.sort(xmlContent, typed));
+    }
+
+    @Test
+    void testTypedComparisonKeepsEqualValuesDistinct() throws Exception {
+        String xmlContent = "<root><v n=\"1.0\"/><v n=\"1\"/><v n=\"01\"/><v n=\"1\"/></root>";
+        SortOptions typed = SortOptions.builder()
+                .outputFormat(OutputFormat.COMPACT)
+                .valueType(ValueType.DECIMAL)
+                .collapseDuplicates(true)
+                .build();
+        assertEquals("<root><v n=\"01\"/><v duplicate-count=\"2\" n=\"1\"/><v n=\"1.0\"/></root>",
+                xmlSorter.sort(xmlContent, typed));
+    }
+
+    private static String flatRecords(int count) {
+        StringBuilder xmlContent = new StringBuilder("<records>");
+        for (int i = 0; i < count; i++) {
+            // Many equal records, to check that the merge keeps the order of a stable sort
+            int id = (i * 7919) % (count / 3);
+            xmlContent.append("<record id=\"").append(id).append("\"><name>n").append(id % 5)
+                    .append("</name><!-- ").append(i).append(" --><tags><b/><a/></tags></record>");
+        }
+        return xmlContent.append("</records>").toString();
+    }
+
+    @Test
+    void testShardedSortMatchesSequentialSort() throws Exception {
+        String xmlContent = flatRecords(1000);
+        SortOptions sequential = SortOptions.builder().outputFormat(OutputFormat.COMPACT).parallelism(1).build();
+        String expected = xmlSorter.sort(xmlContent, sequential);
+
+        for (int parallelism : new int[]{2, 3, 8}) {
+            SortOptions sharded = sequential.toBuilder().parallelism(parallelism).minShardSize(10).build();
+            assertEquals(expected, xmlSorter.sort(xmlContent, sharded), "Sorting in " + parallelism + " shards");
+        }
+    }
+
+    @Test
+    void testShardedSortMatchesSequentialSortWithOptions() throws Exception {
+        String xmlContent = flatRecords(500);
+        SortOptions sequential = SortOptions.builder()
+                .parallelism(1)
+                .preserveInput(true)
+                .collapseDuplicates(true)
+                .valueType(ValueType.INTEGER)
+                .build();
+        SortOptions sharded = sequential.toBuilder().parallelism(4).minShardSize(2).build();
+        assertEquals(xmlSorter.sort(xmlContent, sequential), xmlSorter.sort(xmlContent, sharded));
+    }
+
+    @Test
+    void testShardedSortMergesWithTheValuesOfTheShards() throws Exception {
+        Document document = xmlSorter.parseXmlContent(
+                "<root><r id=\"2\"/><r id=\"1\"/><r id=\"20\"/><r id=\"10\"/></root>");
+        List<Node> records = NodeConvertor.convertNodesToList(document.getDocumentElement().getChildNodes());
+        NodeComparator mergeComparator = new NodeComparator(new SubtreeHasher(), Set.of(ValueType.INTEGER));
+        List<Node> sorted = new ArrayList<>(records);
+        ShardedSort.sort(sorted, 2, 1, () -> new NodeComparator(new SubtreeHasher(), Set.of(ValueType.INTEGER)),
+                mergeComparator, SortDeadline.NONE);
+        assertEquals(List.of(records.get(1), records.get(0), records.get(3), records.get(2)), sorted);
+
+        // The last record is taken by the merge without being compared, and its value was only parsed by its shard
+        ((Element) records.get(2)).setAttribute("id", "0");
+        assertTrue(mergeComparator.compare(records.get(3), records.get(2)) < 0);
+    }
+
+    @Test
+    void testSmallListsAreNotSharded() throws Exception {
+        String xmlContent = "<root><c/><b/><a/></root>";
+        SortOptions sharded = SortOptions.builder().outputFormat(OutputFormat.COMPACT).parallelism(4).build();
+        assertEquals("<root><a/><b/><c/></root>", xmlSorter.sort(xmlContent, sharded));
+    }
+
+    @Test
+    void testExpiredDeadlineStopsSorting() {
+        String xmlContent = flatRecords(300);
+        SortOptions expired = SortOptions.builder().deadline(SortDeadline.after(Duration.ZERO)).build();
+        for (SortOptions options : new SortOptions[]{
+                expired,
+                expired.toBuilder().preserveInput(true).outputFormat(OutputFormat.CANONICAL).build(),
+                expired.toBuilder().includePath("/records").build()}) {
+            SortCancelledException e = assertThrows(SortCancelledException.class, () -> xmlSorter.sort(xmlContent, options));
+            assertTrue(e.isDeadlineExceeded());
+            assertThrows(SortCancelledException.class, () -> xmlSorter.sort(
+                    new ByteArrayInputStream(xmlContent.getBytes(StandardCharsets.UTF_8)), options));
+        }
+    }
+
+    @Test
+    void testCancelledSortStops() {
+        SortDeadline deadline = SortDeadline.unbounded();
+        deadline.cancel();
+        SortOptions options = SortOptions.builder().parallelism(4).minShardSize(10).deadline(deadline).build();
+        SortCancelledException e = assertThrows(SortCancelledException.class, () -> xmlSorter.sort(flatRecords(300), options));
+        assertFalse(e.isDeadlineExceeded());
+        assertEquals("The sort operation was cancelled", e.getMessage());
+    }
+
+    @Test
+    void testDeadlineDoesNotChangeTheOutput() throws Exception {
+        String xmlContent = flatRecords(300);
+        SortOptions options = SortOptions.builder().collapseDuplicates(true).build();
+        SortOptions withDeadline = options.toBuilder().deadline(SortDeadline.after(Duration.ofMinutes(1))).build();
+        assertEquals(options, withDeadline);
+        assertEquals(xmlSorter.sort(xmlContent, options), xmlSorter.sort(xmlContent, withDeadline));
+    }
+}
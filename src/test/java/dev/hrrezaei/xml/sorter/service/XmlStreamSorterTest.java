@@ -0,0 +1,110 @@
+package dev.hrrezaei.xml.sorter.service;
+
+import dev.hrrezaei.xml.sorter.exception.XmlSortingException;
+import dev.hrrezaei.xml.sorter.service.XmlStreamSorter.Framing;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest
+public class XmlStreamSorterTest {
+
+    private static final int DOCUMENT_COUNT = 500;
+
+    @Autowired
+    private XmlStreamSorter xmlStreamSorter;
+
+    @Autowired
+    private XmlSorter xmlSorter;
+
+    private static String unsortedDocument(int index) {
+        return "<message id=\"" + index + "\"><c>" + index + "</c><b/><a>x</a></message>";
+    }
+
+    private static String sortedDocument(int index) {
+        return "<message id=\"" + index + "\"><a>x</a><b/><c>" + index + "</c></message>";
+    }
+
+    @Test
+    void testNewlineDelimitedStreamKeepsTheOrder() throws Exception {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            input.append(unsortedDocument(i)).append(i % 2 == 0 ? "\n" : "\r\n");
+            expected.append(sortedDocument(i)).append('\n');
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int count = xmlStreamSorter.sort(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)),
+                output, Framing.NEWLINE, SortOptions.DEFAULT);
+
+        assertEquals(DOCUMENT_COUNT, count);
+        assertEquals(expected.toString(), output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testInvalidDocumentsAreWrittenEmpty() throws Exception {
+        String input = unsortedDocument(0) + "\n<broken>\n\n" + unsortedDocument(1);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        xmlStreamSorter.sort(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                output, Framing.NEWLINE, SortOptions.DEFAULT);
+
+        assertEquals(sortedDocument(0) + "\n\n\n" + sortedDocument(1) + "\n", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testLineBreaksInContentStayOnOneLine() throws Exception {
+        String input = "<root><b>two&#10;lines</b><a/></root>\n";
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        xmlStreamSorter.sort(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                output, Framing.NEWLINE, SortOptions.DEFAULT);
+
+        assertEquals("<root><a/><b>two&#10;lines</b></root>\n", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testLengthPrefixedStreamKeepsTheOrder() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream dataInput = new DataOutputStream(input);
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            byte[] document = unsortedDocument(i).getBytes(StandardCharsets.UTF_8);
+            dataInput.writeInt(document.length);
+            dataInput.write(document);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        xmlStreamSorter.sort(new ByteArrayInputStream(input.toByteArray()), output, Framing.LENGTH_PREFIXED,
+                SortOptions.DEFAULT);
+
+        List<String> documents = new ArrayList<>();
+        DataInputStream dataOutput = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        while (dataOutput.available() > 0) {
+            documents.add(new String(dataOutput.readNBytes(dataOutput.readInt()), StandardCharsets.UTF_8));
+        }
+        assertEquals(DOCUMENT_COUNT, documents.size());
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            // Length-prefixed documents may span several lines, so they keep the regular indented format
+            assertEquals(xmlSorter.sort(sortedDocument(i)), documents.get(i));
+        }
+    }
+
+    @Test
+    void testTruncatedLengthPrefixedStreamIsRejected() {
+        byte[] input = {0, 0, 0, 42, '<', 'a', '/', '>'};
+        assertThrows(XmlSortingException.class, () -> xmlStreamSorter.sort(new ByteArrayInputStream(input),
+                new ByteArrayOutputStream(), Framing.LENGTH_PREFIXED, SortOptions.DEFAULT));
+    }
+}